@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares answering "which recipes can be brewed now?" from the
+ * {@link Availability} bitmap with checking every recipe against the
+ * inventory, on menus of different sizes.
+ */
+@State(Scope.Thread)
+public class AvailabilityBenchmark {
+
+    private static final int REFILL = 1 << 30;
+
+    @Param({"4", "64", "1024", "16384"})
+    int menuSize;
+
+    Inventory inventory;
+    CoffeeMaker coffeeMaker;
+
+    @Setup
+    public void setUp() throws Exception {
+        inventory = new Inventory();
+        coffeeMaker = new CoffeeMaker(new RecipeBook(), inventory);
+        for (int i = 0; i < menuSize; i++) {
+            Recipe recipe = new Recipe();
+            recipe.setName("Recipe " + i);
+            recipe.setPrice("50");
+            recipe.setAmtCoffee(String.valueOf(i % 3));
+            recipe.setAmtMilk(String.valueOf(i % 2));
+            recipe.setAmtChocolate(String.valueOf(i % 5 == 0 ? 1 : 0));
+            coffeeMaker.addRecipe(recipe);
+        }
+        inventory.setCoffee(REFILL);
+        inventory.setMilk(REFILL);
+        inventory.setChocolate(REFILL);
+    }
+
+    @Benchmark
+    public int bitmapUnchanged() {
+        return coffeeMaker.getAvailability().getCount();
+    }
+
+    @Benchmark
+    public int bitmapAfterPurchase() {
+        if (coffeeMaker.makeCoffee(1, 50) == 50) {
+            inventory.setCoffee(REFILL);
+            inventory.setMilk(REFILL);
+        }
+        return coffeeMaker.getAvailability().getCount();
+    }
+
+    @Benchmark
+    public int checkEveryRecipe() {
+        int count = 0;
+        for (Recipe recipe : coffeeMaker.getRecipes()) {
+            if (recipe != null && inventory.enoughIngredients(recipe)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
+
+/**
+ * Benchmarks the {@link CoffeeMaker} operations a vending front end calls:
+ * purchases on one thread and from several threads against one machine,
+ * with and without a transaction log, restocking, and reading the
+ * inventory.
+ */
+public class CoffeeMakerBenchmark {
+
+    private static final int REFILL = 1 << 30;
+
+    @State(Scope.Thread)
+    public static class Machine {
+        Inventory inventory;
+        CoffeeMaker coffeeMaker;
+
+        @Setup
+        public void setUp() throws Exception {
+            inventory = new Inventory();
+            coffeeMaker = new CoffeeMaker(new RecipeBook(), inventory);
+            addRecipe(coffeeMaker);
+        }
+
+        /**
+         * addInventory only ever adds, so put the stock back to a fixed
+         * level before every iteration rather than letting it climb
+         * towards Integer.MAX_VALUE.
+         */
+        @Setup(Level.Iteration)
+        public void refill() {
+            CoffeeMakerBenchmark.refill(inventory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedMachine {
+        Inventory inventory;
+        CoffeeMaker coffeeMaker;
+
+        @Setup
+        public void setUp() throws Exception {
+            inventory = new Inventory();
+            coffeeMaker = new CoffeeMaker(new RecipeBook(), inventory);
+            addRecipe(coffeeMaker);
+            refill(inventory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LoggedMachine {
+        @Param({"true", "false"})
+        boolean synchronousCommit;
+
+        Inventory inventory;
+        CoffeeMaker coffeeMaker;
+        TransactionLog log;
+        Path file;
+
+        @Setup
+        public void setUp() throws Exception {
+            file = Files.createTempFile("coffeemaker", ".log");
+            log = new TransactionLog(file, synchronousCommit);
+            inventory = new Inventory();
+            coffeeMaker = new CoffeeMaker(new RecipeBook(), inventory, log);
+            addRecipe(coffeeMaker);
+            refill(inventory);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            log.close();
+            Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public int makeCoffee(Machine m) {
+        return purchase(m.coffeeMaker, m.inventory);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int makeCoffeeContended(SharedMachine m) {
+        return purchase(m.coffeeMaker, m.inventory);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int makeCoffeeContended16(SharedMachine m) {
+        return purchase(m.coffeeMaker, m.inventory);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int makeCoffeeLogged16(LoggedMachine m) {
+        return purchase(m.coffeeMaker, m.inventory);
+    }
+
+    @Benchmark
+    public void addInventory(Machine m) throws InventoryException {
+        m.coffeeMaker.addInventory("1", "1", "1", "1");
+    }
+
+    @Benchmark
+    public String checkInventory(Machine m) {
+        return m.coffeeMaker.checkInventory();
+    }
+
+    private static int purchase(CoffeeMaker coffeeMaker, Inventory inventory) {
+        int change = coffeeMaker.makeCoffee(0, 75);
+        if (change == 75) {
+            refill(inventory);
+        }
+        return change;
+    }
+
+    private static void addRecipe(CoffeeMaker coffeeMaker) throws Exception {
+        Recipe recipe = new Recipe();
+        recipe.setName("Coffee");
+        recipe.setPrice("50");
+        recipe.setAmtCoffee("3");
+        recipe.setAmtMilk("1");
+        recipe.setAmtSugar("1");
+        recipe.setAmtChocolate("0");
+        coffeeMaker.addRecipe(recipe);
+    }
+
+    /**
+     * Sets the stock to an absolute level; adding REFILL on top of whatever
+     * is left would overflow after a couple of refills.
+     */
+    private static void refill(Inventory inventory) {
+        inventory.setCoffee(REFILL);
+        inventory.setMilk(REFILL);
+        inventory.setSugar(REFILL);
+        inventory.setChocolate(REFILL);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Compares purchases from one shared {@link CoffeeMaker} with purchases
+ * from a {@link CoffeeMakerFleet} of one coffee maker per thread.
+ */
+public class FleetBenchmark {
+
+    private static final int REFILL = 1 << 30;
+    private static final int THREADS = 4;
+
+    @State(Scope.Benchmark)
+    public static class SharedMachine {
+        CoffeeMaker coffeeMaker;
+
+        @Setup
+        public void setUp() throws Exception {
+            coffeeMaker = new CoffeeMaker(new RecipeBook(), new Inventory());
+            coffeeMaker.addRecipe(recipe());
+            coffeeMaker.addInventory(String.valueOf(REFILL), "0", "0", "0");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Fleet {
+        CoffeeMakerFleet fleet;
+
+        @Setup
+        public void setUp() throws Exception {
+            fleet = new CoffeeMakerFleet(THREADS);
+            fleet.addRecipe(recipe());
+            for (int i = 0; i < THREADS; i++) {
+                fleet.addInventory(i, String.valueOf(REFILL), "0", "0", "0");
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public long sharedMachine(SharedMachine m) {
+        return m.coffeeMaker.purchase(0, 50);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public long fleet(Fleet f) {
+        return f.fleet.purchase(0, 50);
+    }
+
+    private static Recipe recipe() throws Exception {
+        Recipe recipe = new Recipe();
+        recipe.setName("Benchmark");
+        recipe.setPrice("50");
+        recipe.setAmtCoffee("1");
+        return recipe;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures how {@link Inventory#useIngredients(Recipe)} behaves when many
+ * threads brew at once: on independent machines, on one shared machine,
+ * and on one machine with recipes that touch disjoint ingredients.
+ */
+public class InventoryContentionBenchmark {
+
+    private static final int REFILL = 1 << 30;
+
+    /**
+     * One inventory per benchmark thread, like separate machines.
+     */
+    @State(Scope.Thread)
+    public static class Machine {
+        Inventory inventory;
+        Recipe recipe;
+
+        @Setup
+        public void setUp() throws Exception {
+            inventory = filledInventory();
+            recipe = recipe(1, 1, 1, 1);
+        }
+    }
+
+    /**
+     * One inventory shared by every benchmark thread.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedMachine {
+        Inventory inventory;
+        Recipe recipe;
+        Recipe coffeeOnly;
+        Recipe milkOnly;
+
+        @Setup
+        public void setUp() throws Exception {
+            inventory = filledInventory();
+            recipe = recipe(1, 1, 1, 1);
+            coffeeOnly = recipe(1, 0, 0, 0);
+            milkOnly = recipe(0, 1, 0, 0);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean independentMachines(Machine m) {
+        return brew(m.inventory, m.recipe);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean sharedMachine(SharedMachine m) {
+        return brew(m.inventory, m.recipe);
+    }
+
+    @Benchmark
+    @Group("disjointIngredients")
+    @GroupThreads(2)
+    public boolean coffeeOnly(SharedMachine m) {
+        return brew(m.inventory, m.coffeeOnly);
+    }
+
+    @Benchmark
+    @Group("disjointIngredients")
+    @GroupThreads(2)
+    public boolean milkOnly(SharedMachine m) {
+        return brew(m.inventory, m.milkOnly);
+    }
+
+    private static boolean brew(Inventory inventory, Recipe recipe) {
+        if (inventory.useIngredients(recipe)) {
+            return true;
+        }
+        refill(inventory);
+        return false;
+    }
+
+    private static Inventory filledInventory() {
+        Inventory inventory = new Inventory();
+        refill(inventory);
+        return inventory;
+    }
+
+    private static void refill(Inventory inventory) {
+        inventory.setCoffee(REFILL);
+        inventory.setMilk(REFILL);
+        inventory.setSugar(REFILL);
+        inventory.setChocolate(REFILL);
+    }
+
+    private static Recipe recipe(int coffee, int milk, int sugar, int chocolate) throws Exception {
+        Recipe recipe = new Recipe();
+        recipe.setName("Benchmark");
+        recipe.setPrice("50");
+        recipe.setAmtCoffee(String.valueOf(coffee));
+        recipe.setAmtMilk(String.valueOf(milk));
+        recipe.setAmtSugar(String.valueOf(sugar));
+        recipe.setAmtChocolate(String.valueOf(chocolate));
+        return recipe;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
+
+/**
+ * Benchmarks the string setters of {@link Recipe}, for well formed input
+ * and for input they reject.
+ */
+@State(Scope.Thread)
+public class RecipeBenchmark {
+
+    Recipe recipe;
+
+    @Setup
+    public void setUp() {
+        recipe = new Recipe();
+    }
+
+    @Benchmark
+    public Recipe setAmounts() throws RecipeException {
+        recipe.setPrice("75");
+        recipe.setAmtCoffee("3");
+        recipe.setAmtMilk("1");
+        recipe.setAmtSugar("1");
+        recipe.setAmtChocolate("20");
+        return recipe;
+    }
+
+    @Benchmark
+    public RecipeException setInvalidAmount() {
+        try {
+            recipe.setAmtCoffee("abc");
+            return null;
+        } catch (RecipeException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link RecipeBook} changes and lookups on menus of different
+ * sizes.  Each add is paired with a delete so the menu keeps its size
+ * across iterations.
+ */
+@State(Scope.Thread)
+public class RecipeBookBenchmark {
+
+    @Param({"4", "64", "1024", "16384"})
+    int menuSize;
+
+    RecipeBook recipeBook;
+    Recipe extra;
+    String lookupName;
+
+    @Setup
+    public void setUp() throws Exception {
+        recipeBook = new RecipeBook();
+        for (int i = 0; i < menuSize; i++) {
+            Recipe recipe = new Recipe();
+            recipe.setName("Recipe " + i);
+            recipe.setPrice("50");
+            recipe.setAmtCoffee("1");
+            recipeBook.addRecipe(recipe);
+        }
+        extra = new Recipe();
+        extra.setName("Extra");
+        extra.setPrice("50");
+        lookupName = "Recipe " + (menuSize / 2);
+    }
+
+    @Benchmark
+    public String addAndDeleteRecipe() {
+        recipeBook.addRecipe(extra);
+        return recipeBook.deleteRecipe(recipeBook.indexOf("Extra"));
+    }
+
+    @Benchmark
+    public int indexOf() {
+        return recipeBook.indexOf(lookupName);
+    }
+}
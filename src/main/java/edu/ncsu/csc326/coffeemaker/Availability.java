@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+
+/**
+ * Immutable bitmap of which recipe slots can be brewed from one
+ * {@link InventorySnapshot}, one bit per slot.
+ *
+ * A new bitmap is derived from the previous one rather than from
+ * scratch.  Alongside the bits it keeps, for each ingredient, the recipes
+ * that use it sorted by how much they need.  When the stock of an
+ * ingredient drops from b to a, exactly the recipes needing more than a
+ * and at most b stop being available; when it rises from b to a, only
+ * those same recipes can start being available, and just those are
+ * checked against the whole stock.  Both are found by binary search, so
+ * a change costs the logarithm of the menu size plus the number of
+ * recipes it affects.  The whole bitmap is built again when the menu
+ * changes.
+ */
+public final class Availability {
+
+    /**
+     * Recipes that use one ingredient, in order of the units they need.
+     */
+    private static final class Users {
+        final int[] needs;
+        final int[] slots;
+
+        Users(int[] needs, int[] slots) {
+            this.needs = needs;
+            this.slots = slots;
+        }
+
+        /**
+         * Returns the position of the first recipe needing more than the
+         * given units.
+         */
+        int firstAbove(int units) {
+            int low = 0;
+            int high = needs.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (needs[mid] <= units) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final Recipe[] menu;
+    private final InventorySnapshot stock;
+    /**
+     * Recipes that use each ingredient, shared by every bitmap of the
+     * same menu
+     */
+    private final Users[] usersByIngredient;
+    private final long[] bits;
+    private final int count;
+
+    private Availability(Recipe[] menu, InventorySnapshot stock, Users[] usersByIngredient, long[] bits) {
+        this.menu = menu;
+        this.stock = stock;
+        this.usersByIngredient = usersByIngredient;
+        this.bits = bits;
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        this.count = count;
+    }
+
+    /**
+     * Returns true if the recipe in the given slot can be brewed.
+     * @param slot
+     * @return boolean
+     */
+    public boolean isAvailable(int slot) {
+        return slot >= 0 && (slot >> 6) < bits.length && (bits[slot >> 6] & 1L << slot) != 0;
+    }
+
+    /**
+     * Returns the first slot at or after the given one whose recipe can
+     * be brewed, or -1 if there is none.
+     * @param from
+     * @return int
+     */
+    public int nextAvailable(int from) {
+        int word = Math.max(0, from) >> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long remaining = bits[word] & -1L << Math.max(0, from);
+        while (remaining == 0) {
+            if (++word == bits.length) {
+                return -1;
+            }
+            remaining = bits[word];
+        }
+        return word * 64 + Long.numberOfTrailingZeros(remaining);
+    }
+
+    /**
+     * Returns the number of recipes that can be brewed.
+     * @return int
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the inventory version this bitmap was computed at.
+     * @return long
+     */
+    public long getInventoryVersion() {
+        return stock.getVersion();
+    }
+
+    /**
+     * Returns true if this bitmap is for the given menu and stock.
+     */
+    boolean isOf(Recipe[] menu, InventorySnapshot stock) {
+        return this.menu == menu && this.stock == stock;
+    }
+
+    /**
+     * Returns the bitmap for the given menu and stock, derived from the
+     * previous bitmap if it was for the same menu.
+     * @param previous may be null
+     */
+    static Availability update(Availability previous, Recipe[] menu, InventorySnapshot stock) {
+        if (previous == null || previous.menu != menu) {
+            return build(menu, stock);
+        }
+        if (previous.stock == stock) {
+            return previous;
+        }
+        int[] before = previous.stock.units;
+        int[] after = stock.units;
+        Users[] users = previous.usersByIngredient;
+        long[] bits = previous.bits.clone();
+        // drops first: a recipe needing more than is left is unavailable whatever else changed
+        for (int i = 0; i < users.length; i++) {
+            if (after[i] < before[i]) {
+                Users using = users[i];
+                int end = using.firstAbove(before[i]);
+                for (int k = using.firstAbove(after[i]); k < end; k++) {
+                    int slot = using.slots[k];
+                    bits[slot >> 6] &= ~(1L << slot);
+                }
+            }
+        }
+        for (int i = 0; i < users.length; i++) {
+            if (after[i] > before[i]) {
+                Users using = users[i];
+                int end = using.firstAbove(after[i]);
+                for (int k = using.firstAbove(before[i]); k < end; k++) {
+                    int slot = using.slots[k];
+                    if (menu[slot].compile().isCoveredBy(after)) {
+                        bits[slot >> 6] |= 1L << slot;
+                    }
+                }
+            }
+        }
+        return new Availability(menu, stock, users, bits);
+    }
+
+    private static Availability build(Recipe[] menu, InventorySnapshot stock) {
+        int ingredients = stock.units.length;
+        long[] bits = new long[(menu.length + 63) >> 6];
+        // (need << 32 | slot) for every recipe using each ingredient, sorted by need
+        long[][] entries = new long[ingredients][menu.length];
+        int[] counts = new int[ingredients];
+        for (int slot = 0; slot < menu.length; slot++) {
+            if (menu[slot] == null) {
+                continue;
+            }
+            CompiledRecipe r = menu[slot].compile();
+            for (int i = 0; i < r.size() && i < ingredients; i++) {
+                if (r.getAmount(i) != 0) {
+                    entries[i][counts[i]++] = (long) r.getAmount(i) << 32 | slot;
+                }
+            }
+            if (r.isCoveredBy(stock.units)) {
+                bits[slot >> 6] |= 1L << slot;
+            }
+        }
+        Users[] users = new Users[ingredients];
+        for (int i = 0; i < ingredients; i++) {
+            long[] sorted = Arrays.copyOf(entries[i], counts[i]);
+            Arrays.sort(sorted);
+            int[] needs = new int[sorted.length];
+            int[] slots = new int[sorted.length];
+            for (int k = 0; k < sorted.length; k++) {
+                needs[k] = (int) (sorted[k] >>> 32);
+                slots[k] = (int) sorted[k];
+            }
+            users[i] = new Users(needs, slots);
+        }
+        return new Availability(menu, stock, users, bits);
+    }
+}
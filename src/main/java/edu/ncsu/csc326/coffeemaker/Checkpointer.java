@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a {@link SnapshotFile} from a {@link TransactionLog}.
+ *
+ * The checkpointer keeps its own copy of the recipe book and inventory
+ * and brings it up to date by replaying the log records written since
+ * the previous checkpoint, up to what is already on disk.  Because the
+ * snapshot is built from the log rather than from the live coffee maker,
+ * it always matches its LSN exactly, and purchases never wait for it.
+ */
+public class Checkpointer implements Closeable {
+
+    private final Path file;
+    private final TransactionLog log;
+    private final RecipeBook recipeBook;
+    private final Inventory inventory;
+    private long lsn;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a checkpointer for the given snapshot file and log,
+     * starting from the snapshot already in the file, if any.
+     *
+     * @param file
+     * @param log
+     * @param ingredients ingredients stocked by the coffee maker
+     * @throws IOException
+     */
+    public Checkpointer(Path file, TransactionLog log, Ingredients ingredients) throws IOException {
+        this.file = file;
+        this.log = log;
+        this.recipeBook = new RecipeBook();
+        this.inventory = new Inventory(ingredients);
+        this.lsn = SnapshotFile.load(file, recipeBook, inventory);
+    }
+
+    /**
+     * Replays the log written since the last checkpoint and writes a new
+     * snapshot, unless nothing was logged since.  Returns the LSN the
+     * snapshot reflects.
+     *
+     * @return long
+     * @throws IOException
+     */
+    public synchronized long checkpoint() throws IOException {
+        long end = log.replay(lsn, recipeBook, inventory);
+        if (end != lsn) {
+            SnapshotFile.write(file, recipeBook, inventory, end);
+            lsn = end;
+        }
+        return lsn;
+    }
+
+    /**
+     * Starts writing a checkpoint at the given interval on a background
+     * thread.  A checkpoint that fails stops the schedule; calling
+     * {@link #checkpoint()} directly reports the error.
+     *
+     * @param period
+     * @param unit
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coffeemaker-checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops the background checkpoints.
+     */
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+}
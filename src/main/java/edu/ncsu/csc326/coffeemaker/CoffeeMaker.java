@@ -13,12 +13,29 @@
  */
 package edu.ncsu.csc326.coffeemaker;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.ncsu.csc326.coffeemaker.CoffeeMakerMetrics.Operation;
 import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
 
 /**
  * @author Sarah Heckman
  */
 public class CoffeeMaker {
+    /**
+     * Seconds a hold lasts unless changed with
+     * {@link #setHoldTimeout(long, TimeUnit)}
+     */
+    public static final long DEFAULT_HOLD_TIMEOUT = 60;
+    /**
+     * Returned by {@link #reserve(int)} when nothing could be held
+     */
+    public static final long NO_HOLD = HoldTable.NO_HOLD;
+    /**
+     * Number of latest sales kept in the sales ledger
+     */
+    private static final int SALES_KEPT = 4096;
     /**
      * Array of recipes in coffee maker
      */
@@ -27,6 +44,30 @@ public class CoffeeMaker {
      * Inventory of the coffee maker
      */
     private Inventory inventory;
+    /**
+     * Write-ahead log of every change, or null
+     */
+    private final TransactionLog log;
+    /**
+     * Counters and timings of every operation
+     */
+    private final CoffeeMakerMetrics metrics;
+    /**
+     * Which recipes could be brewed, as of the last time anyone asked
+     */
+    private final AtomicReference<Availability> availability = new AtomicReference<Availability>();
+    /**
+     * Servings the inventory could make, as of the last time anyone asked
+     */
+    private final AtomicReference<Servings> servings = new AtomicReference<Servings>();
+    /**
+     * Ingredients held for purchases waiting on payment
+     */
+    private final HoldTable holds;
+    /**
+     * Every successful purchase
+     */
+    private final SalesLedger sales = new SalesLedger(SALES_KEPT);
 
     /**
      * Constructor for the coffee maker
@@ -35,8 +76,25 @@ public class CoffeeMaker {
      * @param inventory
      */
     public CoffeeMaker(RecipeBook recipeBook, Inventory inventory) {
+        this(recipeBook, inventory, null);
+    }
+
+    /**
+     * Constructor for a coffee maker that records every purchase,
+     * restock and recipe change in the given log, and commits it before
+     * reporting it done.  Replay the log into the recipe book and inventory with
+     * {@link TransactionLog#replay(RecipeBook, Inventory)} first.
+     *
+     * @param recipeBook
+     * @param inventory
+     * @param log
+     */
+    public CoffeeMaker(RecipeBook recipeBook, Inventory inventory, TransactionLog log) {
         this.recipeBook = recipeBook;
         this.inventory = inventory;
+        this.log = log;
+        this.metrics = new CoffeeMakerMetrics(inventory);
+        this.holds = new HoldTable(inventory, DEFAULT_HOLD_TIMEOUT, TimeUnit.SECONDS);
     }
 
     /**
@@ -56,7 +114,16 @@ public class CoffeeMaker {
      * @return boolean
      */
     public boolean addRecipe(Recipe r) {
-        return recipeBook.addRecipe(r);
+        long start = System.nanoTime();
+        synchronized (this) {
+            locked(start);
+            boolean added = recipeBook.addRecipe(r);
+            if (added && log != null) {
+                commitLog(log.logAddRecipe(recipeBook.getRecipes()[recipeBook.indexOf(r.getName())].compile()));
+            }
+            metrics.recordLatency(Operation.RECIPE_CHANGE, System.nanoTime() - start);
+            return added;
+        }
     }
 
     /**
@@ -67,7 +134,16 @@ public class CoffeeMaker {
      * @return String
      */
     public String deleteRecipe(int recipeToDelete) {
-        return recipeBook.deleteRecipe(recipeToDelete);
+        long start = System.nanoTime();
+        synchronized (this) {
+            locked(start);
+            String deleted = recipeBook.deleteRecipe(recipeToDelete);
+            if (deleted != null && log != null) {
+                commitLog(log.logDeleteRecipe(recipeToDelete));
+            }
+            metrics.recordLatency(Operation.RECIPE_CHANGE, System.nanoTime() - start);
+            return deleted;
+        }
     }
 
     /**
@@ -79,66 +155,460 @@ public class CoffeeMaker {
      * @return String
      */
     public String editRecipe(int recipeToEdit, Recipe r) {
-        return recipeBook.editRecipe(recipeToEdit, r);
+        long start = System.nanoTime();
+        synchronized (this) {
+            locked(start);
+            String edited = recipeBook.editRecipe(recipeToEdit, r);
+            if (edited != null && log != null) {
+                commitLog(log.logEditRecipe(recipeToEdit, recipeBook.getRecipes()[recipeToEdit].compile()));
+            }
+            metrics.recordLatency(Operation.RECIPE_CHANGE, System.nanoTime() - start);
+            return edited;
+        }
     }
 
     /**
-     * Returns true if inventory was successfully added
+     * Adds inventory.  Every amount is checked first; if any is not a
+     * non-negative integer, or would take an ingredient past
+     * Integer.MAX_VALUE units, nothing is added, and otherwise all four
+     * are added in one update of the inventory.
      *
      * @param amtCoffee
      * @param amtMilk
      * @param amtSugar
      * @param amtChocolate
-     * @return boolean
+     * @throws InventoryException
+     */
+    public void addInventory(String amtCoffee, String amtMilk, String amtSugar, String amtChocolate) throws InventoryException {
+        restock(inventory.parseUnits(amtCoffee, amtMilk, amtSugar, amtChocolate));
+    }
+
+    /**
+     * Adds the given, already checked, units of every ingredient in one
+     * update and logs them as one restock.  Nothing is added or logged
+     * if an ingredient would overflow.
      */
-    public synchronized void addInventory(String amtCoffee, String amtMilk, String amtSugar, String amtChocolate) throws InventoryException {
-        inventory.addCoffee(amtCoffee);
-        inventory.addMilk(amtMilk);
-        inventory.addSugar(amtSugar);
-        inventory.addChocolate(amtChocolate);
+    void restock(int[] amounts) throws InventoryException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            locked(start);
+            inventory.addUnits(amounts);
+            if (log != null) {
+                commitLog(log.logRestock(amounts));
+            }
+            metrics.recordLatency(Operation.RESTOCK, System.nanoTime() - start);
+        }
     }
 
     /**
-     * Returns the inventory of the coffee maker
+     * Returns the inventory of the coffee maker.  The text is only
+     * built again after the inventory changes.
      *
      * @return Inventory
      */
-    public synchronized String checkInventory() {
-        return inventory.toString();
+    public String checkInventory() {
+        long start = System.nanoTime();
+        String text = inventory.snapshot().toString();
+        metrics.recordLatency(Operation.CHECK_INVENTORY, System.nanoTime() - start);
+        return text;
+    }
+
+    /**
+     * Copies the units of each ingredient in the inventory into the
+     * given array, without allocating, and returns the inventory
+     * version they were read at.
+     *
+     * @param units array with room for every ingredient
+     * @return long
+     */
+    public long checkInventory(int[] units) {
+        return inventory.copyUnits(units);
+    }
+
+    /**
+     * Returns an immutable snapshot of the inventory.  The same
+     * snapshot is returned until the inventory changes.
+     *
+     * @return InventorySnapshot
+     */
+    public InventorySnapshot getInventorySnapshot() {
+        return inventory.snapshot();
     }
 
     /**
      * Returns the change of a user's beverage purchase, or
-     * the user's money if the beverage cannot be made
+     * the user's money if the beverage cannot be made.  Use
+     * {@link #purchase(int, int)} to also learn why a purchase failed.
      *
-     * @param r
+     * @param recipeToPurchase
      * @param amtPaid
      * @return int
      */
-    public synchronized int makeCoffee(int recipeToPurchase, int amtPaid) {
-        int change = 0;
+    public int makeCoffee(int recipeToPurchase, int amtPaid) {
+        return PurchaseResult.change(purchase(recipeToPurchase, amtPaid));
+    }
 
-        if (getRecipes()[recipeToPurchase] == null) {
-            change = amtPaid;
-        } else if (getRecipes()[recipeToPurchase].getPrice() <= amtPaid) {
-            if (inventory.useIngredients(getRecipes()[recipeToPurchase])) {
-                change = amtPaid - getRecipes()[recipeToPurchase].getPrice();
+    /**
+     * Purchases a beverage and returns its outcome and change packed
+     * into a {@link PurchaseResult}, so the caller learns whether it was
+     * made without asking the coffee maker again.
+     * The recipe is looked up once, in its compiled form, and the
+     * ingredients are taken with a single compare-and-set on the
+     * inventory, so purchases never wait on a lock.  With a transaction
+     * log the purchase is committed before it is reported; under
+     * synchronous commit it shares its fsync with any other purchases
+     * logged at the same time.
+     *
+     * @param recipeToPurchase
+     * @param amtPaid
+     * @return long
+     */
+    public long purchase(int recipeToPurchase, int amtPaid) {
+        return purchase(recipeToPurchase, amtPaid, true);
+    }
+
+    /**
+     * Purchases a beverage as {@link #purchase(int, int)} does, but only
+     * counts a purchase that fails for lack of ingredients in the
+     * metrics if asked to.  A fleet tries other coffee makers first and
+     * leaves the failure uncounted until none of them can brew it.
+     */
+    long purchase(int recipeToPurchase, int amtPaid, boolean recordShortage) {
+        long start = System.nanoTime();
+        Recipe[] recipes = recipeBook.getRecipes();
+        int change = amtPaid;
+        PurchaseOutcome outcome;
+        if (recipeToPurchase < 0 || recipeToPurchase >= recipes.length) {
+            outcome = PurchaseOutcome.NO_RECIPE;
+            recipeToPurchase = -1;
+        } else if (recipes[recipeToPurchase] == null) {
+            outcome = PurchaseOutcome.NO_RECIPE;
+        } else {
+            CompiledRecipe recipe = recipes[recipeToPurchase].compile();
+            if (recipe.getPrice() > amtPaid) {
+                outcome = PurchaseOutcome.INSUFFICIENT_FUNDS;
+            } else if (!inventory.useIngredients(recipe) && !expireHoldsAndUse(recipe)) {
+                outcome = PurchaseOutcome.OUT_OF_INGREDIENTS;
             } else {
-                change = amtPaid;
+                if (log != null) {
+                    commitLog(log.logPurchase(recipeToPurchase, recipe));
+                }
+                outcome = PurchaseOutcome.SUCCESS;
+                change = amtPaid - recipe.getPrice();
+                sales.record(recipeToPurchase, recipe.getPrice(), change, start);
             }
-        } else {
-            change = amtPaid;
         }
+        if (recordShortage || outcome != PurchaseOutcome.OUT_OF_INGREDIENTS) {
+            metrics.recordPurchase(recipeToPurchase, outcome);
+        }
+        metrics.recordLatency(Operation.PURCHASE, System.nanoTime() - start);
+        return PurchaseResult.of(outcome, change);
+    }
 
+    /**
+     * Gives back the ingredients of any holds that have expired and, if
+     * there were any, tries again to take the recipe's ingredients.
+     */
+    private boolean expireHoldsAndUse(CompiledRecipe recipe) {
+        return holds.expireDue() > 0 && inventory.useIngredients(recipe);
+    }
+
+    /**
+     * Purchases a batch of beverages and returns the change for each
+     * order, or the order's payment if that beverage cannot be made.
+     *
+     * @param recipesToPurchase recipe number of each order
+     * @param amtsPaid amount paid for each order
+     * @return int[] the change for each order
+     */
+    public int[] makeCoffeeBatch(int[] recipesToPurchase, int[] amtsPaid) {
+        long[] results = new long[recipesToPurchase.length];
+        purchaseBatch(recipesToPurchase, amtsPaid, results);
+        int[] change = new int[results.length];
+        for (int i = 0; i < results.length; i++) {
+            change[i] = PurchaseResult.change(results[i]);
+        }
         return change;
     }
 
     /**
-     * Returns the list of Recipes in the RecipeBook.
+     * Purchases a batch of beverages and stores the
+     * {@link PurchaseResult} of each order in the given array.
+     * The recipes are looked up from one view of the recipe book and
+     * the ingredients for the whole batch are taken in one pass; orders
+     * are filled in array order, as described by
+     * {@link Inventory#useIngredients(CompiledRecipe[], boolean[])}.
+     *
+     * @param recipesToPurchase recipe number of each order
+     * @param amtsPaid amount paid for each order
+     * @param results receives the result of each order
+     * @return int the number of orders made
+     */
+    public int purchaseBatch(int[] recipesToPurchase, int[] amtsPaid, long[] results) {
+        int orders = recipesToPurchase.length;
+        if (amtsPaid.length != orders || results.length < orders) {
+            throw new IllegalArgumentException("Each order needs exactly one payment");
+        }
+        long start = System.nanoTime();
+        Recipe[] recipes = recipeBook.getRecipes();
+        CompiledRecipe[] toMake = new CompiledRecipe[orders];
+        for (int i = 0; i < orders; i++) {
+            int recipeToPurchase = recipesToPurchase[i];
+            if (recipeToPurchase >= 0 && recipeToPurchase < recipes.length
+                    && recipes[recipeToPurchase] != null) {
+                CompiledRecipe recipe = recipes[recipeToPurchase].compile();
+                if (recipe.getPrice() <= amtsPaid[i]) {
+                    toMake[i] = recipe;
+                }
+            }
+        }
+
+        holds.expireDue();
+        boolean[] made = new boolean[orders];
+        int count = inventory.useIngredients(toMake, made);
+        if (log != null) {
+            long lsn = 0;
+            for (int i = 0; i < orders; i++) {
+                if (made[i]) {
+                    lsn = log.logPurchase(recipesToPurchase[i], toMake[i]);
+                }
+            }
+            commitLog(lsn);
+        }
+
+        for (int i = 0; i < orders; i++) {
+            int slot = recipesToPurchase[i];
+            PurchaseOutcome outcome;
+            if (slot < 0 || slot >= recipes.length) {
+                outcome = PurchaseOutcome.NO_RECIPE;
+                slot = -1;
+            } else if (recipes[slot] == null) {
+                outcome = PurchaseOutcome.NO_RECIPE;
+            } else if (made[i]) {
+                outcome = PurchaseOutcome.SUCCESS;
+                sales.record(slot, toMake[i].getPrice(), amtsPaid[i] - toMake[i].getPrice(), start);
+            } else if (toMake[i] == null) {
+                outcome = PurchaseOutcome.INSUFFICIENT_FUNDS;
+            } else {
+                outcome = PurchaseOutcome.OUT_OF_INGREDIENTS;
+            }
+            results[i] = PurchaseResult.of(outcome, made[i] ? amtsPaid[i] - toMake[i].getPrice() : amtsPaid[i]);
+            metrics.recordPurchase(slot, outcome);
+        }
+        metrics.recordLatency(Operation.PURCHASE_BATCH, System.nanoTime() - start);
+        return count;
+    }
+
+    /**
+     * Holds the ingredients of a beverage while the customer pays, and
+     * returns a token for the hold, or {@link #NO_HOLD} if the recipe
+     * does not exist or cannot be made.  The ingredients leave the
+     * inventory at once, so they cannot be sold twice, and come back if
+     * the hold is released or not committed before it expires.  No lock
+     * is held while the customer pays.
+     *
+     * @param recipeToPurchase
+     * @return long
+     */
+    public long reserve(int recipeToPurchase) {
+        Recipe[] recipes = recipeBook.getRecipes();
+        if (recipeToPurchase < 0 || recipeToPurchase >= recipes.length || recipes[recipeToPurchase] == null) {
+            return NO_HOLD;
+        }
+        return holds.hold(recipeToPurchase, recipes[recipeToPurchase].compile());
+    }
+
+    /**
+     * Completes the purchase of a held beverage and returns its
+     * {@link PurchaseResult}.  The price is the one the recipe had when
+     * it was reserved.  If the payment does not cover it the hold is
+     * kept, so the customer can pay again; if the hold has been released
+     * or has expired the outcome is {@link PurchaseOutcome#HOLD_EXPIRED}.
+     *
+     * @param hold token returned by {@link #reserve(int)}
+     * @param amtPaid
+     * @return long
+     */
+    public long commit(long hold, int amtPaid) {
+        long start = System.nanoTime();
+        HoldTable.Hold held = holds.get(hold);
+        PurchaseOutcome outcome;
+        int slot = -1;
+        int change = amtPaid;
+        if (held == null) {
+            outcome = PurchaseOutcome.HOLD_EXPIRED;
+        } else if (held.recipe.getPrice() > amtPaid) {
+            outcome = PurchaseOutcome.INSUFFICIENT_FUNDS;
+            slot = held.slot;
+        } else if (holds.remove(hold) == null) {
+            outcome = PurchaseOutcome.HOLD_EXPIRED;
+        } else {
+            inventory.getConsumption().record(held.recipe);
+            if (log != null) {
+                commitLog(log.logPurchase(held.slot, held.recipe));
+            }
+            outcome = PurchaseOutcome.SUCCESS;
+            slot = held.slot;
+            change = amtPaid - held.recipe.getPrice();
+            sales.record(slot, held.recipe.getPrice(), change, start);
+        }
+        metrics.recordPurchase(slot, outcome);
+        metrics.recordLatency(Operation.PURCHASE, System.nanoTime() - start);
+        return PurchaseResult.of(outcome, change);
+    }
+
+    /**
+     * Gives back the ingredients of a hold that will not be paid for.
+     * Returns false if the hold was already committed, released or
+     * expired.
+     *
+     * @param hold token returned by {@link #reserve(int)}
+     * @return boolean
+     */
+    public boolean release(long hold) {
+        return holds.release(hold);
+    }
+
+    /**
+     * Gives back the ingredients of every hold that has expired and
+     * returns how many there were.  Holds also expire as holds are made,
+     * committed or released, before a purchase is reported out of
+     * ingredients, and before availability or servings are computed;
+     * this is for when none of those happen.
+     *
+     * @return int
+     */
+    public int expireHolds() {
+        return holds.expire();
+    }
+
+    /**
+     * Returns the number of holds waiting to be committed or released.
+     *
+     * @return int
+     */
+    public int getHolds() {
+        return holds.size();
+    }
+
+    /**
+     * Sets how long holds made from now on last before they expire.
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void setHoldTimeout(long timeout, TimeUnit unit) {
+        holds.setTimeout(timeout, unit);
+    }
+
+    /**
+     * Returns the ledger of this coffee maker's sales.
+     *
+     * @return SalesLedger
+     */
+    public SalesLedger getSalesLedger() {
+        return sales;
+    }
+
+    /**
+     * Returns which recipes can be brewed from the current inventory.
+     * No lock is taken.  If neither the menu nor the inventory has
+     * changed since the last call the same bitmap is returned; otherwise
+     * only the recipes whose need of a changed ingredient lies between
+     * its old and new stock are looked at again.
+     *
+     * @return Availability
+     */
+    public Availability getAvailability() {
+        holds.expireDue();
+        Availability current = availability.get();
+        Recipe[] menu = recipeBook.getRecipes();
+        InventorySnapshot stock = inventory.snapshot();
+        if (current != null && current.isOf(menu, stock)) {
+            return current;
+        }
+        Availability next = Availability.update(current, menu, stock);
+        availability.compareAndSet(current, next);
+        return next;
+    }
+
+    /**
+     * Returns how many servings of each recipe the current inventory
+     * can make, alone or in the best mix for a given demand.  The result
+     * is cached until the menu or the inventory changes.
+     *
+     * @return Servings
+     */
+    public Servings getServings() {
+        holds.expireDue();
+        Servings current = servings.get();
+        Recipe[] menu = recipeBook.getRecipes();
+        InventorySnapshot stock = inventory.snapshot();
+        if (current != null && current.isOf(menu, stock)) {
+            return current;
+        }
+        Servings next = Servings.of(menu, stock);
+        servings.compareAndSet(current, next);
+        return next;
+    }
+
+    /**
+     * Returns the counters and timings of this coffee maker.
+     *
+     * @return CoffeeMakerMetrics
+     */
+    public CoffeeMakerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a planner that recommends restocks from how fast this
+     * coffee maker has been using its ingredients.
+     *
+     * @param leadTime how long a restock takes to arrive
+     * @param cover how long the stock should last once it arrives
+     * @param unit unit of the two times
+     * @return RestockPlanner
+     */
+    public RestockPlanner getRestockPlanner(long leadTime, long cover, TimeUnit unit) {
+        return new RestockPlanner(inventory, leadTime, cover, unit);
+    }
+
+    /**
+     * Records how long the caller waited for the monitor.
+     */
+    private void locked(long start) {
+        metrics.recordLatency(Operation.MONITOR_WAIT, System.nanoTime() - start);
+    }
+
+    /**
+     * Commits the log up to the given record and records the wait.
+     */
+    private void commitLog(long lsn) {
+        long start = System.nanoTime();
+        log.commit(lsn);
+        metrics.recordLatency(Operation.LOG_COMMIT, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the number of the recipe with the given name, or -1 if
+     * there is no such recipe.
+     *
+     * @param name
+     * @return int
+     */
+    public int indexOf(String name) {
+        return recipeBook.indexOf(name);
+    }
+
+    /**
+     * Returns the list of Recipes in the RecipeBook.  The array is a
+     * snapshot of the menu that later edits do not change, and must not
+     * be modified.
      *
      * @return Recipe []
      */
-    public synchronized Recipe[] getRecipes() {
+    public Recipe[] getRecipes() {
         return recipeBook.getRecipes();
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
+
+/**
+ * A fleet of coffee makers, or shards, that sell the same menu.
+ *
+ * Each shard has its own recipe book and inventory and shares nothing
+ * with the others, so purchases on different shards never contend.  An
+ * order is sent to a home shard, chosen by the caller or by the ordering
+ * thread, so that each thread keeps to one shard.  If the home shard is
+ * out of an ingredient the order is stolen by the next shard that can
+ * brew it, found from the shards' availability bitmaps.
+ * {@link #rebalance()} evens out the stock of every ingredient across the
+ * shards.
+ *
+ * Menu changes are made on every shard under the fleet's monitor, so a
+ * recipe has the same slot on every shard.  Shards are not logged.
+ */
+public class CoffeeMakerFleet {
+
+    private final CoffeeMaker[] shards;
+    private final Inventory[] inventories;
+    private final Ingredients ingredients;
+    private final LongAdder stolen = new LongAdder();
+
+    /**
+     * Creates a fleet of the given number of coffee makers with the
+     * default ingredients, each filled with 15 units of everything.
+     *
+     * @param size
+     */
+    public CoffeeMakerFleet(int size) {
+        this(size, Ingredients.DEFAULT);
+    }
+
+    /**
+     * Creates a fleet of the given number of coffee makers stocking the
+     * given ingredients.
+     *
+     * @param size
+     * @param ingredients
+     */
+    public CoffeeMakerFleet(int size, Ingredients ingredients) {
+        if (size < 1) {
+            throw new IllegalArgumentException("A fleet needs at least one coffee maker");
+        }
+        this.ingredients = ingredients;
+        this.shards = new CoffeeMaker[size];
+        this.inventories = new Inventory[size];
+        for (int i = 0; i < size; i++) {
+            inventories[i] = new Inventory(ingredients);
+            shards[i] = new CoffeeMaker(new RecipeBook(), inventories[i]);
+        }
+    }
+
+    /**
+     * Returns the number of coffee makers in the fleet.
+     *
+     * @return int
+     */
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Returns one coffee maker of the fleet.  Its menu must only be
+     * changed through the fleet.
+     *
+     * @param shard
+     * @return CoffeeMaker
+     */
+    public CoffeeMaker getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * Adds the recipe to every coffee maker.  Returns false if a recipe
+     * with the same name already exists.
+     *
+     * @param r
+     * @return boolean
+     */
+    public synchronized boolean addRecipe(Recipe r) {
+        if (!shards[0].addRecipe(r)) {
+            return false;
+        }
+        for (int i = 1; i < shards.length; i++) {
+            shards[i].addRecipe(r);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the recipe in the given slot from every coffee maker and
+     * returns its name, or null if there is no such recipe.
+     *
+     * @param recipeToDelete
+     * @return String
+     */
+    public synchronized String deleteRecipe(int recipeToDelete) {
+        String deleted = shards[0].deleteRecipe(recipeToDelete);
+        if (deleted != null) {
+            for (int i = 1; i < shards.length; i++) {
+                shards[i].deleteRecipe(recipeToDelete);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Replaces the recipe in the given slot on every coffee maker and
+     * returns the name it keeps, or null if there is no such recipe.
+     *
+     * @param recipeToEdit
+     * @param r
+     * @return String
+     */
+    public synchronized String editRecipe(int recipeToEdit, Recipe r) {
+        String edited = shards[0].editRecipe(recipeToEdit, r);
+        if (edited != null) {
+            for (int i = 1; i < shards.length; i++) {
+                shards[i].editRecipe(recipeToEdit, r);
+            }
+        }
+        return edited;
+    }
+
+    /**
+     * Adds inventory to one coffee maker.
+     *
+     * @param shard
+     * @param amtCoffee
+     * @param amtMilk
+     * @param amtSugar
+     * @param amtChocolate
+     * @throws InventoryException
+     */
+    public void addInventory(int shard, String amtCoffee, String amtMilk, String amtSugar, String amtChocolate)
+            throws InventoryException {
+        shards[shard].addInventory(amtCoffee, amtMilk, amtSugar, amtChocolate);
+    }
+
+    /**
+     * Adds a delivery to many coffee makers at once.  Row i of the
+     * manifest holds the amounts for coffee maker i, in ingredient
+     * order, or is null if it gets nothing.  Every amount in the
+     * manifest is checked before any is added, so a bad amount anywhere
+     * leaves the whole fleet unchanged.  The rows are then checked
+     * against the stock of their coffee makers while no other restock
+     * can run, so a row that would overflow an ingredient also leaves
+     * the whole fleet unchanged; otherwise each coffee maker takes its
+     * row in one update.
+     *
+     * @param manifest
+     * @throws InventoryException
+     */
+    public synchronized void addInventory(String[][] manifest) throws InventoryException {
+        if (manifest.length > shards.length) {
+            throw new IllegalArgumentException("The fleet has only " + shards.length + " coffee makers");
+        }
+        int[][] amounts = new int[manifest.length][];
+        for (int i = 0; i < manifest.length; i++) {
+            if (manifest[i] != null) {
+                amounts[i] = inventories[i].parseUnits(manifest[i]);
+            }
+        }
+        restock(amounts, 0);
+    }
+
+    /**
+     * Takes the monitor of every coffee maker from the given one on, in
+     * order, so none of them can be restocked by anyone else; then
+     * checks that every row fits before restocking any of them.
+     * Purchases only lower the stock, so they cannot make a row that
+     * fitted overflow.
+     */
+    private void restock(int[][] amounts, int from) throws InventoryException {
+        if (from < amounts.length) {
+            synchronized (shards[from]) {
+                restock(amounts, from + 1);
+            }
+            return;
+        }
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] != null) {
+                inventories[i].checkHeadroom(amounts[i]);
+            }
+        }
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] != null) {
+                shards[i].restock(amounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Purchases a beverage from the calling thread's home coffee maker,
+     * as {@link #purchase(int, int, int)} does.
+     *
+     * @param recipeToPurchase
+     * @param amtPaid
+     * @return long a {@link PurchaseResult}
+     */
+    public long purchase(int recipeToPurchase, int amtPaid) {
+        return purchase(homeShard(), recipeToPurchase, amtPaid);
+    }
+
+    /**
+     * Purchases a beverage from the given home coffee maker, or, if it
+     * is out of an ingredient, from the next one that can brew it.  An
+     * order made elsewhere is counted as a sale of that coffee maker
+     * only; an order no coffee maker can brew is counted once, as out
+     * of ingredients at home.
+     *
+     * @param home
+     * @param recipeToPurchase
+     * @param amtPaid
+     * @return long a {@link PurchaseResult}
+     */
+    public long purchase(int home, int recipeToPurchase, int amtPaid) {
+        long result = shards[home].purchase(recipeToPurchase, amtPaid, false);
+        if (PurchaseResult.outcome(result) != PurchaseOutcome.OUT_OF_INGREDIENTS) {
+            return result;
+        }
+        for (int i = 1; i < shards.length; i++) {
+            CoffeeMaker shard = shards[(home + i) % shards.length];
+            if (shard.getAvailability().isAvailable(recipeToPurchase)) {
+                long stolenResult = shard.purchase(recipeToPurchase, amtPaid, false);
+                if (PurchaseResult.isSuccess(stolenResult)) {
+                    stolen.increment();
+                    return stolenResult;
+                }
+            }
+        }
+        return shards[home].purchase(recipeToPurchase, amtPaid);
+    }
+
+    /**
+     * Returns the number of orders that were made by a coffee maker
+     * other than their home.
+     *
+     * @return long
+     */
+    public long getStolen() {
+        return stolen.sum();
+    }
+
+    /**
+     * Returns the total units of an ingredient across the fleet.
+     *
+     * @param ingredient index in {@link Ingredients}
+     * @return long
+     */
+    public long getUnits(int ingredient) {
+        long total = 0;
+        for (Inventory inventory : inventories) {
+            total += inventory.getUnits(ingredient);
+        }
+        return total;
+    }
+
+    /**
+     * Moves stock so that every coffee maker holds about the same
+     * units of each ingredient.  Units are taken from the shards above
+     * the average and given to those below it; a shard's stock is never
+     * overdrawn or overflowed, and purchases can go on while stock moves,
+     * so the result is only as even as the purchases allow.
+     *
+     * @return long the number of units moved
+     */
+    public synchronized long rebalance() {
+        long moved = 0;
+        int n = shards.length;
+        for (int i = 0; i < ingredients.size(); i++) {
+            int average = (int) (getUnits(i) / n);
+            int taker = 0;
+            for (int giver = 0; giver < n; giver++) {
+                int surplus = inventories[giver].getUnits(i) - average;
+                while (surplus > 0 && taker < n) {
+                    int shortfall = average - inventories[taker].getUnits(i);
+                    if (shortfall <= 0) {
+                        taker++;
+                        continue;
+                    }
+                    int taken = inventories[giver].takeUnits(i, Math.min(surplus, shortfall));
+                    if (taken == 0) {
+                        break;
+                    }
+                    try {
+                        inventories[taker].addUnits(i, taken);
+                    } catch (InventoryException e) {
+                        // restocked meanwhile: give the units back
+                        inventories[giver].adjustUnits(i, taken);
+                        taker++;
+                        continue;
+                    }
+                    surplus -= taken;
+                    moved += taken;
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Returns the home coffee maker of the calling thread.
+     */
+    private int homeShard() {
+        return (int) (Thread.currentThread().getId() % shards.length);
+    }
+}
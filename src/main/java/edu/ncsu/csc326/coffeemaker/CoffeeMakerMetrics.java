@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, latency histograms and gauges for one {@link CoffeeMaker}.
+ *
+ * Purchases are counted by recipe slot and {@link PurchaseOutcome}, and
+ * every operation is timed into a {@link LatencyHistogram}.  Purchases
+ * never take a lock, so instead of lock wait the metrics report how often
+ * an inventory update had to be retried because another one got there
+ * first; the recipe and restock operations, which are serialized, report
+ * how long they waited for the coffee maker's monitor.  Gauges, including
+ * how long each ingredient will last at its recent rate of use, are read
+ * from the inventory when the metrics are exported.
+ *
+ * Recording uses {@link LongAdder}s and allocates nothing, except the
+ * first time a recipe slot beyond the current ones is counted.
+ */
+public final class CoffeeMakerMetrics {
+
+    /**
+     * Timed operations and waits.
+     */
+    public enum Operation {
+        PURCHASE, PURCHASE_BATCH, RESTOCK, CHECK_INVENTORY, RECIPE_CHANGE,
+        /**
+         * Wait for the coffee maker's monitor before a restock or recipe
+         * change
+         */
+        MONITOR_WAIT,
+        /**
+         * Wait for a transaction log commit
+         */
+        LOG_COMMIT
+    }
+
+    private static final PurchaseOutcome[] OUTCOMES = PurchaseOutcome.values();
+
+    private final Inventory inventory;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    /**
+     * Purchase outcomes by recipe slot, then by outcome; grown by
+     * copying when a new slot is counted
+     */
+    private volatile LongAdder[][] outcomesBySlot = new LongAdder[0][];
+    /**
+     * Purchases of slots that can never hold a recipe
+     */
+    private final LongAdder invalidSlots = new LongAdder();
+    /**
+     * Commits of holds that were no longer known, so have no slot
+     */
+    private final LongAdder unknownHolds = new LongAdder();
+
+    /**
+     * Creates the metrics of a coffee maker with the given inventory.
+     * @param inventory
+     */
+    CoffeeMakerMetrics(Inventory inventory) {
+        this.inventory = inventory;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Counts one purchase of the given recipe slot, or of a slot outside
+     * the recipe book if it is negative.
+     */
+    void recordPurchase(int slot, PurchaseOutcome outcome) {
+        if (slot < 0) {
+            (outcome == PurchaseOutcome.HOLD_EXPIRED ? unknownHolds : invalidSlots).increment();
+            return;
+        }
+        LongAdder[][] bySlot = outcomesBySlot;
+        if (slot >= bySlot.length) {
+            bySlot = grow(slot);
+        }
+        bySlot[slot][outcome.ordinal()].increment();
+    }
+
+    /**
+     * Records how long an operation took.
+     */
+    void recordLatency(Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    private synchronized LongAdder[][] grow(int slot) {
+        LongAdder[][] bySlot = outcomesBySlot;
+        if (slot < bySlot.length) {
+            return bySlot;
+        }
+        LongAdder[][] grown = Arrays.copyOf(bySlot, Math.max(slot + 1, bySlot.length * 2));
+        for (int i = bySlot.length; i < grown.length; i++) {
+            grown[i] = new LongAdder[OUTCOMES.length];
+            for (int j = 0; j < OUTCOMES.length; j++) {
+                grown[i][j] = new LongAdder();
+            }
+        }
+        outcomesBySlot = grown;
+        return grown;
+    }
+
+    /**
+     * Returns the number of purchases of the given recipe slot that
+     * ended with the given outcome.
+     * @param slot
+     * @param outcome
+     * @return long
+     */
+    public long getPurchases(int slot, PurchaseOutcome outcome) {
+        LongAdder[][] bySlot = outcomesBySlot;
+        return slot >= 0 && slot < bySlot.length ? bySlot[slot][outcome.ordinal()].sum() : 0;
+    }
+
+    /**
+     * Returns the number of purchases of any recipe that ended with the
+     * given outcome.
+     * @param outcome
+     * @return long
+     */
+    public long getPurchases(PurchaseOutcome outcome) {
+        long count = outcome == PurchaseOutcome.NO_RECIPE ? invalidSlots.sum()
+                : outcome == PurchaseOutcome.HOLD_EXPIRED ? unknownHolds.sum() : 0;
+        for (LongAdder[] slot : outcomesBySlot) {
+            count += slot[outcome.ordinal()].sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latencies recorded for the given operation.
+     * @param operation
+     * @return LatencyHistogram.Snapshot
+     */
+    public LatencyHistogram.Snapshot getLatency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    /**
+     * Returns the number of times an inventory update was retried
+     * because another update changed the inventory first.
+     * @return long
+     */
+    public long getContendedUpdates() {
+        return inventory.getContendedUpdates();
+    }
+
+    /**
+     * Appends every metric to the given builder in the Prometheus text
+     * format, one sample per line.  Latencies are in nanoseconds.
+     * @param out
+     */
+    public void export(StringBuilder out) {
+        LongAdder[][] bySlot = outcomesBySlot;
+        for (int slot = 0; slot < bySlot.length; slot++) {
+            for (PurchaseOutcome outcome : OUTCOMES) {
+                long count = bySlot[slot][outcome.ordinal()].sum();
+                if (count > 0) {
+                    out.append("coffeemaker_purchases_total{slot=\"").append(slot)
+                            .append("\",outcome=\"").append(outcome.name().toLowerCase())
+                            .append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        out.append("coffeemaker_purchases_invalid_slot_total ").append(invalidSlots.sum()).append('\n');
+        out.append("coffeemaker_purchases_unknown_hold_total ").append(unknownHolds.sum()).append('\n');
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot latency = getLatency(operation);
+            String name = "coffeemaker_" + operation.name().toLowerCase() + "_nanos";
+            for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(latency.getValueAtPercentile(quantile * 100)).append('\n');
+            }
+            out.append(name).append("_max ").append(latency.getMax()).append('\n');
+            out.append(name).append("_sum ").append(latency.getTotal()).append('\n');
+            out.append(name).append("_count ").append(latency.getCount()).append('\n');
+        }
+        out.append("coffeemaker_inventory_contended_updates_total ").append(getContendedUpdates()).append('\n');
+        InventorySnapshot stock = inventory.snapshot();
+        Ingredients ingredients = stock.getIngredients();
+        for (int i = 0; i < ingredients.size(); i++) {
+            out.append("coffeemaker_inventory_units{ingredient=\"").append(ingredients.getName(i).toLowerCase())
+                    .append("\"} ").append(stock.getUnits(i)).append('\n');
+        }
+        ConsumptionTracker consumption = inventory.getConsumption();
+        for (int i = 0; i < ingredients.size(); i++) {
+            double secondsToEmpty = consumption.getSecondsToEmpty(i, stock.getUnits(i));
+            out.append("coffeemaker_inventory_seconds_to_empty{ingredient=\"")
+                    .append(ingredients.getName(i).toLowerCase()).append("\"} ")
+                    .append(Double.isInfinite(secondsToEmpty) ? "+Inf" : Double.toString(secondsToEmpty))
+                    .append('\n');
+        }
+        out.append("coffeemaker_inventory_version ").append(stock.getVersion()).append('\n');
+    }
+
+    /**
+     * Returns every metric in the Prometheus text format.
+     * @return String
+     */
+    public String export() {
+        StringBuilder out = new StringBuilder();
+        export(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves a {@link CoffeeMaker} over TCP using the line protocol of
+ * {@link CommandProcessor}, plus QUIT to end the session.
+ *
+ * One selector thread accepts connections and does all socket reads and
+ * writes without blocking; commands run on a fixed pool of workers.  A
+ * connection has at most one worker at a time, so its replies come back
+ * in the order it sent the commands, and a client that pipelines many
+ * commands has them run in one batch with one write.  The number of
+ * threads is fixed however many clients connect, and a connection that
+ * sends faster than its commands run, or reads its replies slower than
+ * they are made, stops being read until its backlog or its unwritten
+ * replies drain.
+ */
+public class CoffeeMakerServer implements Closeable {
+
+    /**
+     * Longest command accepted, in bytes
+     */
+    static final int MAX_LINE = 1024;
+    /**
+     * Commands queued for one connection before it stops being read
+     */
+    private static final int MAX_BACKLOG = 1024;
+    /**
+     * Bytes of replies waiting for one connection's socket before it
+     * stops being read
+     */
+    private static final int MAX_PENDING_BYTES = 64 * 1024;
+    private static final byte[] QUIT = "QUIT".getBytes(StandardCharsets.US_ASCII);
+
+    private final CommandProcessor processor;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    /**
+     * Connections with replies to write or reading to resume
+     */
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+    /**
+     * Read buffer shared by every connection; only used by the selector
+     * thread, which copies each line out before the next read.
+     */
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Starts serving the coffee maker on the given port, or on any free
+     * port if it is 0, with the given number of worker threads.
+     *
+     * @param coffeeMaker
+     * @param port
+     * @param threads
+     * @throws IOException
+     */
+    public CoffeeMakerServer(CoffeeMaker coffeeMaker, int port, int threads) throws IOException {
+        this.processor = new CommandProcessor(coffeeMaker);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), MAX_BACKLOG);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        final AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "coffeemaker-worker-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.selectorThread = new Thread(this::selectLoop, "coffeemaker-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return int
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, closes every open one and waits for
+     * the selector thread to finish.
+     */
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection c;
+                while ((c = ready.poll()) != null) {
+                    c.resume();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                conn.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.read();
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, channel));
+        }
+    }
+
+    /**
+     * State of one client.  The line being assembled belongs to the
+     * selector thread; commands and replies pass between it and the
+     * worker through the two queues.
+     */
+    private final class Connection implements Runnable {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private byte[] line = new byte[128];
+        private int lineLength;
+        private final Queue<String> commands = new ConcurrentLinkedQueue<String>();
+        private final AtomicInteger backlog = new AtomicInteger();
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+        /**
+         * Bytes in replies not yet taken by the socket
+         */
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final StringBuilder reply = new StringBuilder();
+        /**
+         * Set once the client quits or overflows; the connection closes
+         * after its remaining replies are written.
+         */
+        private volatile boolean closing;
+
+        Connection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads whatever has arrived and queues every complete line.
+         */
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                closing = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                schedule();
+                return;
+            }
+            in.flip();
+            while (in.hasRemaining() && !closing) {
+                byte b = in.get();
+                if (b == '\n') {
+                    endLine();
+                } else if (b != '\r') {
+                    if (lineLength == MAX_LINE) {
+                        queue("ERR line too long");
+                        closing = true;
+                    } else {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, Math.min(MAX_LINE, line.length * 2));
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+            in.clear();
+            if (!mayRead()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            schedule();
+        }
+
+        private void endLine() {
+            if (lineLength == QUIT.length && isQuit()) {
+                closing = true;
+            } else if (lineLength > 0) {
+                commands.add(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+                backlog.incrementAndGet();
+            }
+            lineLength = 0;
+        }
+
+        private boolean isQuit() {
+            for (int i = 0; i < QUIT.length; i++) {
+                if ((line[i] & ~0x20) != QUIT[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Queues a reply made by the selector thread itself, behind any
+         * commands still waiting for a worker.
+         */
+        private void queue(String message) {
+            commands.add("\0" + message);
+            backlog.incrementAndGet();
+        }
+
+        /**
+         * Hands the connection to a worker unless one already has it.
+         */
+        void schedule() {
+            if (!commands.isEmpty() && busy.compareAndSet(false, true)) {
+                workers.execute(this);
+            } else if (closing && commands.isEmpty() && !busy.get()) {
+                ready.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Returns true if the connection may be read: it is not closing,
+         * and neither its commands nor its unwritten replies have piled up.
+         */
+        private boolean mayRead() {
+            return !closing && backlog.get() < MAX_BACKLOG && pendingBytes.get() < MAX_PENDING_BYTES;
+        }
+
+        /**
+         * Runs every queued command and queues their replies as one write.
+         * A command that fails unexpectedly gets an ERR reply in place of
+         * whatever it had written, and the commands after it still run.
+         */
+        public void run() {
+            try {
+                String command;
+                while ((command = commands.poll()) != null) {
+                    backlog.decrementAndGet();
+                    if (command.charAt(0) == '\0') {
+                        reply.append(command, 1, command.length());
+                    } else {
+                        int start = reply.length();
+                        try {
+                            processor.execute(command, reply);
+                        } catch (RuntimeException e) {
+                            reply.setLength(start);
+                            reply.append("ERR internal error");
+                        }
+                    }
+                    reply.append('\n');
+                }
+                if (reply.length() > 0) {
+                    byte[] bytes = reply.toString().getBytes(StandardCharsets.UTF_8);
+                    reply.setLength(0);
+                    pendingBytes.addAndGet(bytes.length);
+                    replies.add(ByteBuffer.wrap(bytes));
+                }
+            } finally {
+                busy.set(false);
+                ready.add(this);
+                selector.wakeup();
+            }
+            if (!commands.isEmpty() && busy.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * Called on the selector thread after a worker finishes: writes
+         * the replies, which also decides whether to keep reading.
+         */
+        void resume() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+
+        /**
+         * Writes as many replies as the socket takes, waiting for
+         * OP_WRITE if it fills up, and closes the connection once a
+         * quitting client has everything.  Reading is switched off while
+         * too many reply bytes are unwritten and back on once they drain.
+         */
+        void write() throws IOException {
+            int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+            ByteBuffer out;
+            while ((out = replies.peek()) != null) {
+                pendingBytes.addAndGet(-channel.write(out));
+                if (out.hasRemaining()) {
+                    ops |= SelectionKey.OP_WRITE;
+                    break;
+                }
+                replies.poll();
+            }
+            if (closing && commands.isEmpty() && !busy.get() && replies.isEmpty()) {
+                channel.close();
+                return;
+            }
+            key.interestOps(mayRead() ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
+import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
+
+/**
+ * Runs one-line text commands against a {@link CoffeeMaker}.  Used by the
+ * network server and the scripted mode of {@link Main}.
+ *
+ * Commands are a keyword followed by space-separated arguments; recipe
+ * numbers are slots counted from 0, and a recipe name comes last so that
+ * it may contain spaces.  A command with more or fewer arguments than it
+ * takes is refused.  Each command produces one line that starts with
+ * OK or ERR.  In a script, blank lines and lines starting with # are
+ * skipped.
+ * <pre>
+ * ADD price coffee milk sugar chocolate name   OK slot
+ * EDIT slot price coffee milk sugar chocolate  OK old-name
+ * DELETE slot                                  OK name
+ * RESTOCK coffee milk sugar chocolate          OK
+ * INVENTORY                                    OK Coffee=15 Milk=15 ...
+ * MENU                                         OK 0=Coffee 1=Latte ...
+ * AVAILABLE                                    OK 0 2 ... (slots that can be brewed)
+ * SERVINGS                                     OK 0=5 2=3 ... (most of each recipe)
+ * BUY slot paid                                OK change, or
+ *                                              ERR outcome amount-returned
+ * </pre>
+ */
+public class CommandProcessor {
+
+    private final CoffeeMaker coffeeMaker;
+
+    /**
+     * Creates a command processor for the given coffee maker.
+     *
+     * @param coffeeMaker
+     */
+    public CommandProcessor(CoffeeMaker coffeeMaker) {
+        this.coffeeMaker = coffeeMaker;
+    }
+
+    /**
+     * Runs one command and appends its one-line reply, without the line
+     * terminator, to the given builder.
+     *
+     * @param line
+     * @param reply
+     */
+    public void execute(String line, StringBuilder reply) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        String command = (space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase();
+        try {
+            switch (command) {
+                case "BUY": {
+                    String[] args = args(trimmed, 3);
+                    int slot = Units.parse(args[1]);
+                    int paid = Units.parse(args[2]);
+                    if (slot == Units.INVALID || paid == Units.INVALID) {
+                        invalidNumber(slot == Units.INVALID ? args[1] : args[2], reply);
+                        break;
+                    }
+                    long result = coffeeMaker.purchase(slot, paid);
+                    if (PurchaseResult.isSuccess(result)) {
+                        reply.append("OK ");
+                    } else {
+                        reply.append("ERR ").append(PurchaseResult.outcome(result).name().toLowerCase()).append(' ');
+                    }
+                    reply.append(PurchaseResult.change(result));
+                    break;
+                }
+                case "INVENTORY":
+                    args(trimmed, 1);
+                    inventory(reply.append("OK"));
+                    break;
+                case "MENU":
+                    args(trimmed, 1);
+                    menu(reply.append("OK"));
+                    break;
+                case "AVAILABLE":
+                    args(trimmed, 1);
+                    available(reply.append("OK"));
+                    break;
+                case "SERVINGS":
+                    args(trimmed, 1);
+                    servings(reply.append("OK"));
+                    break;
+                case "RESTOCK": {
+                    String[] args = args(trimmed, 5);
+                    coffeeMaker.addInventory(args[1], args[2], args[3], args[4]);
+                    reply.append("OK");
+                    break;
+                }
+                case "ADD":
+                    add(args(trimmed, 7, true), reply);
+                    break;
+                case "EDIT":
+                    edit(args(trimmed, 7), reply);
+                    break;
+                case "DELETE": {
+                    String[] args = args(trimmed, 2);
+                    int slot = Units.parse(args[1]);
+                    if (slot == Units.INVALID) {
+                        invalidNumber(args[1], reply);
+                        break;
+                    }
+                    String deleted = coffeeMaker.deleteRecipe(slot);
+                    if (deleted == null) {
+                        reply.append("ERR no recipe in slot ").append(args[1]);
+                    } else {
+                        reply.append("OK ").append(deleted);
+                    }
+                    break;
+                }
+                default:
+                    reply.append("ERR unknown command ").append(command);
+            }
+        } catch (InventoryException | RecipeException | IllegalArgumentException e) {
+            reply.append("ERR ").append(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one command and returns its reply.
+     *
+     * @param line
+     * @return String
+     */
+    public String execute(String line) {
+        StringBuilder reply = new StringBuilder();
+        execute(line, reply);
+        return reply.toString();
+    }
+
+    /**
+     * Runs every command of a script and writes one reply line for each.
+     * Commands are read and run one at a time and the reply buffer is
+     * reused, so a script of any length runs in constant memory.  The
+     * writer is flushed at the end.
+     *
+     * @param script
+     * @param out
+     * @return the number of commands run
+     * @throws IOException
+     */
+    public long run(BufferedReader script, Writer out) throws IOException {
+        StringBuilder reply = new StringBuilder();
+        long count = 0;
+        String line;
+        while ((line = script.readLine()) != null) {
+            if (isComment(line)) {
+                continue;
+            }
+            reply.setLength(0);
+            execute(line, reply);
+            reply.append('\n');
+            out.append(reply);
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    private static boolean isComment(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != ' ' && c != '\t') {
+                return c == '#';
+            }
+        }
+        return true;
+    }
+
+    private void add(String[] args, StringBuilder reply) throws RecipeException {
+        Recipe r = recipe(args, 1);
+        r.setName(args[6]);
+        if (coffeeMaker.addRecipe(r)) {
+            reply.append("OK ").append(coffeeMaker.indexOf(args[6]));
+        } else {
+            reply.append("ERR ").append(args[6]).append(" could not be added");
+        }
+    }
+
+    private void edit(String[] args, StringBuilder reply) throws RecipeException {
+        int slot = Units.parse(args[1]);
+        if (slot == Units.INVALID) {
+            invalidNumber(args[1], reply);
+            return;
+        }
+        Recipe r = recipe(args, 2);
+        String edited = coffeeMaker.editRecipe(slot, r);
+        if (edited == null) {
+            reply.append("ERR no recipe in slot ").append(args[1]);
+        } else {
+            reply.append("OK ").append(edited);
+        }
+    }
+
+    private static Recipe recipe(String[] args, int from) throws RecipeException {
+        Recipe r = new Recipe();
+        r.setPrice(args[from]);
+        r.setAmtCoffee(args[from + 1]);
+        r.setAmtMilk(args[from + 2]);
+        r.setAmtSugar(args[from + 3]);
+        r.setAmtChocolate(args[from + 4]);
+        return r;
+    }
+
+    private void inventory(StringBuilder reply) {
+        InventorySnapshot snapshot = coffeeMaker.getInventorySnapshot();
+        Ingredients ingredients = snapshot.getIngredients();
+        for (int i = 0; i < ingredients.size(); i++) {
+            reply.append(' ').append(ingredients.getName(i)).append('=').append(snapshot.getUnits(i));
+        }
+    }
+
+    private void menu(StringBuilder reply) {
+        Recipe[] recipes = coffeeMaker.getRecipes();
+        for (int i = 0; i < recipes.length; i++) {
+            if (recipes[i] != null) {
+                reply.append(' ').append(i).append('=').append(recipes[i].getName());
+            }
+        }
+    }
+
+    private void available(StringBuilder reply) {
+        Availability available = coffeeMaker.getAvailability();
+        for (int slot = available.nextAvailable(0); slot >= 0; slot = available.nextAvailable(slot + 1)) {
+            reply.append(' ').append(slot);
+        }
+    }
+
+    private void servings(StringBuilder reply) {
+        Servings servings = coffeeMaker.getServings();
+        Recipe[] recipes = coffeeMaker.getRecipes();
+        for (int i = 0; i < recipes.length; i++) {
+            if (recipes[i] != null) {
+                reply.append(' ').append(i).append('=').append(servings.getMaxServings(i));
+            }
+        }
+    }
+
+    /**
+     * Splits a command into its keyword and arguments, which must come
+     * to the given count.
+     */
+    private static String[] args(String command, int count) {
+        return args(command, count, false);
+    }
+
+    /**
+     * Splits a command into its keyword and arguments, which must come
+     * to the given count.  If the last argument is text, anything past
+     * the arguments before it stays part of it, spaces included.
+     */
+    private static String[] args(String command, int count, boolean text) {
+        String[] args = command.split(" +", text ? count : 0);
+        if (args.length != count) {
+            throw new IllegalArgumentException(args[0].toUpperCase() + " takes " + (count - 1) + " arguments");
+        }
+        return args;
+    }
+
+    /**
+     * Replies that a slot or amount is not a non-negative integer.  Bad
+     * numbers are caught with {@link Units#parse} and answered here
+     * directly, so they cost no exception.
+     */
+    private static void invalidNumber(String arg, StringBuilder reply) {
+        reply.append("ERR ").append(arg).append(" is not a non-negative integer");
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+
+/**
+ * Immutable form of a {@link Recipe}, used when brewing.  The amounts are
+ * a dense vector indexed like {@link Ingredients}, trimmed after the last
+ * ingredient the recipe uses, so it can be shared between threads without
+ * copying and checked against the inventory in one loop.  Obtain one from
+ * {@link Recipe#compile()}.
+ */
+public final class CompiledRecipe {
+    private final String name;
+    private final int price;
+    private final int[] amounts;
+
+    CompiledRecipe(String name, int price, int[] amounts) {
+        int length = amounts.length;
+        while (length > 0 && amounts[length - 1] == 0) {
+            length--;
+        }
+        this.name = name;
+        this.price = price;
+        this.amounts = Arrays.copyOf(amounts, length);
+    }
+
+    /**
+     * @return   Returns the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return   Returns the price.
+     */
+    public int getPrice() {
+        return price;
+    }
+
+    /**
+     * Returns the units of the given ingredient used by the recipe.
+     * @param ingredient index in {@link Ingredients}
+     * @return int
+     */
+    public int getAmount(int ingredient) {
+        return ingredient < amounts.length ? amounts[ingredient] : 0;
+    }
+
+    /**
+     * Returns the number of ingredients up to and including the last
+     * one the recipe uses.
+     */
+    int size() {
+        return amounts.length;
+    }
+
+    /**
+     * @return   Returns the amtCoffee.
+     */
+    public int getAmtCoffee() {
+        return getAmount(Ingredients.COFFEE);
+    }
+
+    /**
+     * @return   Returns the amtMilk.
+     */
+    public int getAmtMilk() {
+        return getAmount(Ingredients.MILK);
+    }
+
+    /**
+     * @return   Returns the amtSugar.
+     */
+    public int getAmtSugar() {
+        return getAmount(Ingredients.SUGAR);
+    }
+
+    /**
+     * @return   Returns the amtChocolate.
+     */
+    public int getAmtChocolate() {
+        return getAmount(Ingredients.CHOCOLATE);
+    }
+
+    /**
+     * Returns true if the given stock covers this recipe.  The check is
+     * a single branch-free loop: a shortfall in any ingredient makes its
+     * difference, and so the OR of all differences, negative.
+     */
+    boolean isCoveredBy(int[] units) {
+        int[] need = amounts;
+        if (need.length > units.length) {
+            return false;
+        }
+        int shortfall = 0;
+        for (int i = 0; i < need.length; i++) {
+            shortfall |= units[i] - need[i];
+        }
+        return shortfall >= 0;
+    }
+
+    /**
+     * Subtracts this recipe from the given stock.
+     */
+    void deductFrom(int[] units) {
+        int[] need = amounts;
+        for (int i = 0; i < need.length; i++) {
+            units[i] -= need[i];
+        }
+    }
+
+    /**
+     * Adds this recipe back to the given stock.
+     */
+    void addTo(int[] units) {
+        int[] need = amounts;
+        for (int i = 0; i < need.length; i++) {
+            units[i] += need[i];
+        }
+    }
+
+    /**
+     * Returns the name of the recipe.
+     * @return String
+     */
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks how fast an {@link Inventory} uses each ingredient.
+ *
+ * Brewing only adds the units used to a {@link LongAdder} per
+ * ingredient, so it never locks.  The rate of use is an exponentially
+ * weighted moving average over roughly the last minute, brought up to
+ * date when it is read: the first reader after each sampling interval
+ * claims the update with a compare-and-set and folds in the units used
+ * since the last one, weighted by how long ago that was.
+ */
+public final class ConsumptionTracker {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private final LongSupplier clock;
+    private final LongAdder[] used;
+    /**
+     * Time of the last rate update; claimed by the reader that updates
+     */
+    private final AtomicLong lastSample;
+    /**
+     * Total units used at the last rate update; only touched by the
+     * reader that claimed it
+     */
+    private final long[] sampled;
+    /**
+     * Units per second of each ingredient; replaced as a whole
+     */
+    private volatile double[] rates;
+    private volatile boolean warm;
+
+    /**
+     * Creates a tracker for the given ingredients.
+     * @param ingredients
+     */
+    public ConsumptionTracker(Ingredients ingredients) {
+        this(ingredients, System::nanoTime);
+    }
+
+    /**
+     * Creates a tracker that reads the time, in nanoseconds, from the
+     * given clock.
+     */
+    ConsumptionTracker(Ingredients ingredients, LongSupplier clock) {
+        this.clock = clock;
+        this.used = new LongAdder[ingredients.size()];
+        for (int i = 0; i < used.length; i++) {
+            used[i] = new LongAdder();
+        }
+        this.sampled = new long[used.length];
+        this.rates = new double[used.length];
+        this.lastSample = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Counts the ingredients of one beverage that was made.
+     */
+    void record(CompiledRecipe r) {
+        int n = Math.min(r.size(), used.length);
+        for (int i = 0; i < n; i++) {
+            int amount = r.getAmount(i);
+            if (amount != 0) {
+                used[i].add(amount);
+            }
+        }
+    }
+
+    /**
+     * Returns the total units of the given ingredient used so far.
+     * @param ingredient index in {@link Ingredients}
+     * @return long
+     */
+    public long getUsed(int ingredient) {
+        return used[ingredient].sum();
+    }
+
+    /**
+     * Returns the recent rate of use of the given ingredient, in units
+     * per second.  It is 0 until the first sampling interval has passed.
+     * @param ingredient index in {@link Ingredients}
+     * @return double
+     */
+    public double getRate(int ingredient) {
+        sample();
+        return rates[ingredient];
+    }
+
+    /**
+     * Returns how many seconds the given units of an ingredient will
+     * last at its recent rate of use, or infinity if it is not being
+     * used.
+     * @param ingredient index in {@link Ingredients}
+     * @param units
+     * @return double
+     */
+    public double getSecondsToEmpty(int ingredient, int units) {
+        double rate = getRate(ingredient);
+        return rate > 0 ? Math.max(0, units) / rate : Double.POSITIVE_INFINITY;
+    }
+
+    private void sample() {
+        long last = lastSample.get();
+        long now = clock.getAsLong();
+        long elapsed = now - last;
+        if (elapsed < INTERVAL || !lastSample.compareAndSet(last, now)) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        double weight = warm ? 1 - Math.exp(-elapsed / WINDOW) : 1;
+        double[] next = rates.clone();
+        for (int i = 0; i < used.length; i++) {
+            long total = used[i].sum();
+            double instant = (total - sampled[i]) / seconds;
+            sampled[i] = total;
+            next[i] += weight * (instant - next[i]);
+        }
+        rates = next;
+        warm = true;
+    }
+}
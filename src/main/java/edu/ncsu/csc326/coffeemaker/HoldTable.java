@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Ingredients held for purchases that have not been paid for yet.
+ *
+ * A hold takes its recipe's ingredients out of the inventory when it is
+ * made, so nobody else can buy them, and either keeps them when it is
+ * committed or gives them back when it is released or expires.  Holds
+ * live in an array indexed by the low half of their token, so every
+ * operation is O(1); the high half is a generation count that makes the
+ * tokens of finished holds invalid.  Each hold is also linked into a
+ * hashed timer wheel of {@value #WHEEL_SIZE} buckets by its deadline,
+ * and holds are expired lazily: each operation first expires the holds
+ * in the buckets the clock has passed since the last one.  Purchases
+ * and stock queries that never touch a hold call {@link #expireDue()},
+ * which only takes the monitor once a tick has passed with holds out.
+ *
+ * The table is guarded by its own monitor, which is only held for
+ * these short updates, never while a payment is authorised.
+ */
+final class HoldTable {
+
+    /**
+     * Returned instead of a token when nothing could be held
+     */
+    static final long NO_HOLD = -1;
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * One hold.  The links are only used under the table's monitor.
+     */
+    static final class Hold {
+        final long token;
+        final int slot;
+        final CompiledRecipe recipe;
+        final long deadline;
+        int bucket;
+        Hold previous;
+        Hold next;
+
+        Hold(long token, int slot, CompiledRecipe recipe, long deadline) {
+            this.token = token;
+            this.slot = slot;
+            this.recipe = recipe;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Inventory inventory;
+    private final LongSupplier clock;
+    private final long origin;
+    private volatile long timeout;
+    private Hold[] holds = new Hold[16];
+    private int[] generations = new int[16];
+    /**
+     * Indices below {@link #limit} that are free, as a stack
+     */
+    private int[] free = new int[16];
+    private int freeCount;
+    private int limit;
+    private volatile int size;
+    private final Hold[] wheel = new Hold[WHEEL_SIZE];
+    /**
+     * Last tick whose bucket has been expired
+     */
+    private volatile long tick = -1;
+    private long expired;
+
+    /**
+     * Creates a table of holds on the given inventory that expire after
+     * the given timeout.
+     */
+    HoldTable(Inventory inventory, long timeout, TimeUnit unit) {
+        this(inventory, timeout, unit, System::nanoTime);
+    }
+
+    HoldTable(Inventory inventory, long timeout, TimeUnit unit, LongSupplier clock) {
+        this.inventory = inventory;
+        this.clock = clock;
+        this.origin = clock.getAsLong();
+        setTimeout(timeout, unit);
+    }
+
+    /**
+     * Sets how long holds made from now on last.
+     */
+    void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Holds need a positive timeout");
+        }
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Takes the ingredients of the recipe from the inventory and returns
+     * the token of a hold on them, or {@link #NO_HOLD} if there are not
+     * enough.
+     */
+    long hold(int slot, CompiledRecipe recipe) {
+        if (!inventory.reserveIngredients(recipe)) {
+            return NO_HOLD;
+        }
+        long now = clock.getAsLong();
+        synchronized (this) {
+            expire(now);
+            int index = freeCount > 0 ? free[--freeCount] : nextIndex();
+            long token = (long) generations[index] << 32 | index;
+            Hold hold = new Hold(token, slot, recipe, now + timeout);
+            holds[index] = hold;
+            link(hold);
+            size++;
+            return token;
+        }
+    }
+
+    /**
+     * Returns the hold with the given token, or null if it has finished.
+     */
+    synchronized Hold get(long token) {
+        expire(clock.getAsLong());
+        return find(token);
+    }
+
+    /**
+     * Finishes the hold with the given token, keeping its ingredients
+     * out of the inventory, and returns it, or null if it had already
+     * finished.
+     */
+    synchronized Hold remove(long token) {
+        expire(clock.getAsLong());
+        Hold hold = find(token);
+        if (hold != null) {
+            finish(hold);
+        }
+        return hold;
+    }
+
+    /**
+     * Finishes the hold with the given token and gives its ingredients
+     * back.  Returns false if it had already finished.
+     */
+    boolean release(long token) {
+        Hold hold = remove(token);
+        if (hold == null) {
+            return false;
+        }
+        inventory.releaseIngredients(hold.recipe);
+        return true;
+    }
+
+    /**
+     * Gives back the ingredients of every hold past its deadline and
+     * returns how many there were.
+     */
+    synchronized int expire() {
+        long before = expired;
+        expire(clock.getAsLong());
+        return (int) (expired - before);
+    }
+
+    /**
+     * Expires the holds past their deadline if there are any holds and
+     * the clock has passed a tick since the last expiry; otherwise only
+     * reads the clock, or not even that.  Returns how many expired.
+     */
+    int expireDue() {
+        if (size == 0) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        if (tickOf(now) - 1 <= tick) {
+            return 0;
+        }
+        synchronized (this) {
+            long before = expired;
+            expire(now);
+            return (int) (expired - before);
+        }
+    }
+
+    /**
+     * Returns the number of holds not yet finished.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of holds that have expired.
+     */
+    synchronized long getExpired() {
+        return expired;
+    }
+
+    private Hold find(long token) {
+        int index = (int) token;
+        if (token < 0 || index >= limit) {
+            return null;
+        }
+        Hold hold = holds[index];
+        return hold != null && hold.token == token ? hold : null;
+    }
+
+    private int nextIndex() {
+        if (limit == holds.length) {
+            holds = Arrays.copyOf(holds, limit * 2);
+            generations = Arrays.copyOf(generations, limit * 2);
+            free = Arrays.copyOf(free, limit * 2);
+        }
+        return limit++;
+    }
+
+    private void finish(Hold hold) {
+        int index = (int) hold.token;
+        unlink(hold);
+        holds[index] = null;
+        generations[index] = (generations[index] + 1) & Integer.MAX_VALUE;
+        free[freeCount++] = index;
+        size--;
+    }
+
+    private void link(Hold hold) {
+        hold.bucket = (int) (Math.max(tickOf(hold.deadline), tick + 1) & (WHEEL_SIZE - 1));
+        hold.next = wheel[hold.bucket];
+        if (hold.next != null) {
+            hold.next.previous = hold;
+        }
+        wheel[hold.bucket] = hold;
+    }
+
+    private void unlink(Hold hold) {
+        if (hold.previous != null) {
+            hold.previous.next = hold.next;
+        } else {
+            wheel[hold.bucket] = hold.next;
+        }
+        if (hold.next != null) {
+            hold.next.previous = hold.previous;
+        }
+        hold.previous = null;
+        hold.next = null;
+    }
+
+    /**
+     * Expires the holds in the bucket of every tick that has ended since
+     * the last one expired, so a hold outlives its deadline by at most
+     * one tick.  Holds more than one turn of the wheel away stay linked
+     * and are passed over.
+     */
+    private void expire(long now) {
+        long target = tickOf(now) - 1;
+        long last = Math.min(target, tick + WHEEL_SIZE);
+        while (tick < last) {
+            tick++;
+            Hold hold = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+            while (hold != null) {
+                Hold next = hold.next;
+                if (hold.deadline - now <= 0) {
+                    finish(hold);
+                    inventory.releaseIngredients(hold.recipe);
+                    expired++;
+                }
+                hold = next;
+            }
+        }
+        tick = Math.max(tick, target);
+    }
+
+    private long tickOf(long time) {
+        return (time - origin) / TICK;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable registry of the ingredients a coffee maker stocks.  Each
+ * ingredient name is given a dense index, starting at zero, and
+ * inventories and recipes keep their amounts in arrays by that index.
+ */
+public final class Ingredients {
+
+    public static final int COFFEE = 0;
+    public static final int MILK = 1;
+    public static final int SUGAR = 2;
+    public static final int CHOCOLATE = 3;
+
+    /**
+     * The four ingredients of the original coffee maker.
+     */
+    public static final Ingredients DEFAULT = new Ingredients("Coffee", "Milk", "Sugar", "Chocolate");
+
+    private final String[] names;
+    private final Map<String, Integer> indexes;
+
+    /**
+     * Creates a registry of the given ingredients, indexed in the order
+     * they are listed.
+     *
+     * @param names
+     */
+    public Ingredients(String... names) {
+        this.names = names.clone();
+        this.indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < this.names.length; i++) {
+            if (indexes.put(this.names[i], i) != null) {
+                throw new IllegalArgumentException("Duplicate ingredient " + this.names[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns a registry with the ingredients of this one, at the same
+     * indexes, followed by the given ones.
+     *
+     * @param moreNames
+     * @return Ingredients
+     */
+    public Ingredients with(String... moreNames) {
+        String[] all = Arrays.copyOf(names, names.length + moreNames.length);
+        System.arraycopy(moreNames, 0, all, names.length, moreNames.length);
+        return new Ingredients(all);
+    }
+
+    /**
+     * Returns the number of ingredients.
+     *
+     * @return int
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the name of the ingredient at the given index.
+     *
+     * @param ingredient
+     * @return String
+     */
+    public String getName(int ingredient) {
+        return names[ingredient];
+    }
+
+    /**
+     * Returns the index of the named ingredient, or -1 if it is not
+     * registered.
+     *
+     * @param name
+     * @return int
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+}
@@ -1,264 +1,608 @@
 /*
  * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
  * All Rights Reserved.
- * 
- * Permission has been explicitly granted to the University of Minnesota 
- * Software Engineering Center to use and distribute this source for 
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
  * educational purposes, including delivering online education through
- * Coursera or other entities.  
- * 
+ * Coursera or other entities.
+ *
  * No warranty is given regarding this software, including warranties as
- * to the correctness or completeness of this software, including 
+ * to the correctness or completeness of this software, including
  * fitness for purpose.
  */
 package edu.ncsu.csc326.coffeemaker;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
 import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
 
 /**
  * @author Sarah Heckman
  *
- * Inventory for the coffee maker
+ * Inventory for the coffee maker.  Each instance owns its own stock of
+ * the ingredients in its {@link Ingredients} registry.  The units of
+ * every ingredient live in one immutable, versioned vector that is
+ * replaced with a single compare-and-set, so a purchase reserves all of
+ * its ingredients at once without taking a monitor.  The current vector
+ * is available to readers as an {@link InventorySnapshot}, which is
+ * always consistent; readers that use the single-ingredient getters
+ * instead can check that they saw one version with
+ * {@link #tryOptimisticRead()} and {@link #validate(long)}.
  */
 public class Inventory {
-    
-    private static int coffee;
-    private static int milk;
-    private static int sugar;
-    private static int chocolate;
-    
+
+    private final Ingredients ingredients;
+    private final AtomicReference<InventorySnapshot> state;
+    /**
+     * Compare-and-sets that lost to another update
+     */
+    private final LongAdder contendedUpdates = new LongAdder();
+    private final ConsumptionTracker consumption;
+    /**
+     * Stackless exception thrown for bad units of each ingredient, so
+     * rejecting bad input allocates nothing
+     */
+    private final InventoryException[] invalidUnits;
+    /**
+     * Stackless exception thrown when adding to an ingredient would take
+     * it past Integer.MAX_VALUE
+     */
+    private final InventoryException[] overflowUnits;
+
     /**
      * Creates a coffee maker inventory object and
      * fills each item in the inventory with 15 units.
      */
     public Inventory() {
-    	setCoffee(15);
-    	setMilk(15);
-    	setSugar(15);
-    	setChocolate(15);
+        this(Ingredients.DEFAULT);
+    }
+
+    /**
+     * Creates an inventory of the given ingredients and
+     * fills each item in the inventory with 15 units.
+     * @param ingredients
+     */
+    public Inventory(Ingredients ingredients) {
+        this(ingredients, new ConsumptionTracker(ingredients));
+    }
+
+    /**
+     * Creates an inventory of the given ingredients that reports its
+     * use to the given tracker.
+     */
+    Inventory(Ingredients ingredients, ConsumptionTracker consumption) {
+        this.ingredients = ingredients;
+        this.consumption = consumption;
+        this.invalidUnits = new InventoryException[ingredients.size()];
+        this.overflowUnits = new InventoryException[ingredients.size()];
+        for (int i = 0; i < invalidUnits.length; i++) {
+            invalidUnits[i] = new InventoryException("Units of " + ingredients.getName(i).toLowerCase()
+                    + " must be a positive integer", false);
+            overflowUnits[i] = new InventoryException("Units of " + ingredients.getName(i).toLowerCase()
+                    + " would overflow", false);
+        }
+        int[] units = new int[ingredients.size()];
+        Arrays.fill(units, 15);
+        this.state = new AtomicReference<InventorySnapshot>(new InventorySnapshot(ingredients, units, 0));
     }
-    
+
+    /**
+     * Returns the ingredients this inventory stocks.
+     * @return Ingredients
+     */
+    public Ingredients getIngredients() {
+        return ingredients;
+    }
+
+    /**
+     * Returns the current number of units of any ingredient
+     * in the inventory.
+     * @param ingredient index in {@link Ingredients}
+     * @return int
+     */
+    public int getUnits(int ingredient) {
+        return state.get().units[ingredient];
+    }
+
+    /**
+     * Sets the number of units of any ingredient in the
+     * inventory to the specified amount.
+     * @param ingredient index in {@link Ingredients}
+     * @param units
+     */
+    public void setUnits(int ingredient, int units) {
+        if (units >= 0) {
+            update(ingredient, units, false);
+        }
+    }
+
+    /**
+     * Add the number of units of any ingredient in the inventory
+     * to the current amount of that ingredient.
+     * @param ingredient index in {@link Ingredients}
+     * @param units
+     * @throws InventoryException if units is not a non-negative integer
+     * or the ingredient would hold more than Integer.MAX_VALUE units
+     */
+    public void addUnits(int ingredient, String units) throws InventoryException {
+        int amount = Units.parse(units);
+        if (amount == Units.INVALID) {
+            throw invalidUnits[ingredient];
+        }
+        addUnits(ingredient, amount);
+    }
+
     /**
-     * Returns the current number of chocolate units in 
+     * Adds the given non-negative number of units to an ingredient,
+     * unless that would take it past Integer.MAX_VALUE units.
+     * @throws InventoryException if the ingredient would overflow
+     */
+    void addUnits(int ingredient, int amount) throws InventoryException {
+        while (true) {
+            InventorySnapshot current = state.get();
+            if (current.units[ingredient] > Integer.MAX_VALUE - amount) {
+                throw overflowUnits[ingredient];
+            }
+            int[] next = current.units.clone();
+            next[ingredient] += amount;
+            if (state.compareAndSet(current, next(next, current))) {
+                return;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    /**
+     * Adds units of several ingredients at once, the first amount to the
+     * first ingredient and so on.  Every amount is checked before any is
+     * added, and they are all added in one update of the inventory, so
+     * either every amount is added or none is.
+     * @param units amounts of the first units.length ingredients
+     * @throws InventoryException if any amount is not a non-negative
+     * integer or would take its ingredient past Integer.MAX_VALUE units
+     */
+    public void addUnits(String... units) throws InventoryException {
+        addUnits(parseUnits(units));
+    }
+
+    /**
+     * Returns the current number of chocolate units in
      * the inventory.
      * @return int
      */
     public int getChocolate() {
-        return chocolate;
+        return getUnits(Ingredients.CHOCOLATE);
     }
-    
+
     /**
      * Sets the number of chocolate units in the inventory
      * to the specified amount.
      * @param chocolate
      */
-    public synchronized void setChocolate(int chocolate) {
-    	if(chocolate >= 0) {
-    		Inventory.chocolate = chocolate;
-    	}
-        
+    public void setChocolate(int chocolate) {
+        setUnits(Ingredients.CHOCOLATE, chocolate);
     }
-    
+
     /**
-     * Add the number of chocolate units in the inventory 
+     * Add the number of chocolate units in the inventory
      * to the current amount of chocolate units.
      * @param chocolate
      * @throws InventoryException
      */
-    public synchronized void addChocolate(String chocolate) throws InventoryException {
-    	int amtChocolate = 0;
-    	try {
-    		amtChocolate = Integer.parseInt(chocolate);
-    	} catch (NumberFormatException e) {
-    		throw new InventoryException("Units of chocolate must be a positive integer");
-    	}
-		if (amtChocolate >= 0) {
-			Inventory.chocolate += amtChocolate;
-		} else {
-			throw new InventoryException("Units of chocolate must be a positive integer");
-		}
-    }
-    
+    public void addChocolate(String chocolate) throws InventoryException {
+        addUnits(Ingredients.CHOCOLATE, chocolate);
+    }
+
     /**
      * Returns the current number of coffee units in
      * the inventory.
      * @return int
      */
     public int getCoffee() {
-        return coffee;
+        return getUnits(Ingredients.COFFEE);
     }
-    
+
     /**
-     * Sets the number of coffee units in the inventory 
+     * Sets the number of coffee units in the inventory
      * to the specified amount.
      * @param coffee
      */
-    public synchronized void setCoffee(int coffee) {
-    	if(coffee >= 0) {
-    		Inventory.coffee = coffee;
-    	}
+    public void setCoffee(int coffee) {
+        setUnits(Ingredients.COFFEE, coffee);
     }
-    
+
     /**
-     * Add the number of coffee units in the inventory 
+     * Add the number of coffee units in the inventory
      * to the current amount of coffee units.
      * @param coffee
      * @throws InventoryException
      */
-    public synchronized void addCoffee(String coffee) throws InventoryException {
-    	int amtCoffee = 0;
-    	try {
-    		amtCoffee = Integer.parseInt(coffee);
-    	} catch (NumberFormatException e) {
-    		throw new InventoryException("Units of coffee must be a positive integer");
-    	}
-		if (amtCoffee >= 0) {
-			Inventory.coffee += amtCoffee;
-		} else {
-			throw new InventoryException("Units of coffee must be a positive integer");
-		}
-    }
-    
+    public void addCoffee(String coffee) throws InventoryException {
+        addUnits(Ingredients.COFFEE, coffee);
+    }
+
     /**
      * Returns the current number of milk units in
      * the inventory.
      * @return int
      */
     public int getMilk() {
-        return milk;
+        return getUnits(Ingredients.MILK);
     }
-    
+
     /**
      * Sets the number of milk units in the inventory
      * to the specified amount.
      * @param milk
      */
-    public synchronized void setMilk(int milk) {
-    	if(milk >= 0) {
-    		Inventory.milk = milk;
-    	}
+    public void setMilk(int milk) {
+        setUnits(Ingredients.MILK, milk);
     }
-    
+
     /**
-     * Add the number of milk units in the inventory 
+     * Add the number of milk units in the inventory
      * to the current amount of milk units.
      * @param milk
      * @throws InventoryException
      */
-    public synchronized void addMilk(String milk) throws InventoryException {
-    	int amtMilk = 0;
-    	try {
-    		amtMilk = Integer.parseInt(milk);
-    	} catch (NumberFormatException e) {
-    		throw new InventoryException("Units of milk must be a positive integer");
-    	}
-		if (amtMilk >= 0) {
-			Inventory.milk += amtMilk;
-		} else {
-			throw new InventoryException("Units of milk must be a positive integer");
-		}
-    }
-    
-    /**
-     * Returns the current number of sugar units in 
+    public void addMilk(String milk) throws InventoryException {
+        addUnits(Ingredients.MILK, milk);
+    }
+
+    /**
+     * Returns the current number of sugar units in
      * the inventory.
      * @return int
      */
     public int getSugar() {
-        return sugar;
+        return getUnits(Ingredients.SUGAR);
     }
-    
+
     /**
      * Sets the number of sugar units in the inventory
      * to the specified amount.
      * @param sugar
      */
-    public synchronized void setSugar(int sugar) {
-    	if(sugar >= 0) {
-    		Inventory.sugar = sugar;
-    	}
+    public void setSugar(int sugar) {
+        setUnits(Ingredients.SUGAR, sugar);
     }
-    
+
     /**
-     * Add the number of sugar units in the inventory 
+     * Add the number of sugar units in the inventory
      * to the current amount of sugar units.
      * @param sugar
      * @throws InventoryException
      */
-    public synchronized void addSugar(String sugar) throws InventoryException {
-    	int amtSugar = 0;
-    	try {
-    		amtSugar = Integer.parseInt(sugar);
-    	} catch (NumberFormatException e) {
-    		throw new InventoryException("Units of sugar must be a positive integer");
-    	}
-		if (amtSugar <= 0) {
-			Inventory.sugar += amtSugar;
-		} else {
-			throw new InventoryException("Units of sugar must be a positive integer");
-		}
-    }
-    
+    public void addSugar(String sugar) throws InventoryException {
+        addUnits(Ingredients.SUGAR, sugar);
+    }
+
     /**
      * Returns true if there are enough ingredients to make
      * the beverage.
      * @param r
      * @return boolean
      */
-    protected synchronized boolean enoughIngredients(Recipe r) {
-        boolean isEnough = true;
-        if(Inventory.coffee < r.getAmtCoffee()) {
-            isEnough = false;
-        }
-        if(Inventory.milk < r.getAmtMilk()) {
-            isEnough = false;
-        }
-        if(Inventory.sugar < r.getAmtSugar()) {
-            isEnough = false;
+    protected boolean enoughIngredients(Recipe r) {
+        return r.compile().isCoveredBy(state.get().units);
+    }
+
+    /**
+     * Removes the ingredients used to make the specified
+     * recipe.  All of its ingredients are checked and taken in one
+     * compare-and-set of the inventory state; if another purchase got
+     * there first the attempt is simply retried against the new state.
+     * @param r
+     * @return true if the ingredients were used
+     */
+    public boolean useIngredients(Recipe r) {
+        return useIngredients(r.compile());
+    }
+
+    /**
+     * Removes the ingredients used to make the specified
+     * compiled recipe, as {@link #useIngredients(Recipe)} does.
+     * @param r
+     * @return true if the ingredients were used
+     */
+    public boolean useIngredients(CompiledRecipe r) {
+        if (reserveIngredients(r)) {
+            consumption.record(r);
+            return true;
         }
-        if(Inventory.chocolate < r.getAmtChocolate()) {
-            isEnough = false;
+        return false;
+    }
+
+    /**
+     * Removes the ingredients for a batch of orders in one
+     * compare-and-set.  Orders are served in array order: each one is
+     * made if the stock left over by the orders before it covers its
+     * recipe, and skipped otherwise, so a large order that cannot be
+     * made does not stop smaller orders after it.  Null entries are
+     * skipped.
+     * @param orders the recipe of each order
+     * @param made set to true for every order that was made
+     * @return the number of orders made
+     */
+    public int useIngredients(CompiledRecipe[] orders, boolean[] made) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] units = current.units.clone();
+            int count = 0;
+            for (int i = 0; i < orders.length; i++) {
+                CompiledRecipe r = orders[i];
+                made[i] = r != null && r.isCoveredBy(units);
+                if (made[i]) {
+                    r.deductFrom(units);
+                    count++;
+                }
+            }
+            if (count == 0 || state.compareAndSet(current, next(units, current))) {
+                for (int i = 0; i < orders.length; i++) {
+                    if (made[i]) {
+                        consumption.record(orders[i]);
+                    }
+                }
+                return count;
+            }
+            contendedUpdates.increment();
         }
-        return isEnough;
     }
-    
+
     /**
-     * Removes the ingredients used to make the specified 
-     * recipe.  Assumes that the user has checked that there
-     * are enough ingredients to make 
-     * @param r
+     * Returns a number that changes every time the contents of the
+     * inventory change.
+     * @return long
+     */
+    public long getVersion() {
+        return state.get().getVersion();
+    }
+
+    /**
+     * Returns a stamp for an optimistic read, as
+     * {@link java.util.concurrent.locks.StampedLock#tryOptimisticRead()}
+     * does.  The stamp is the inventory version, so unlike a StampedLock
+     * stamp, zero does not mean failure; writers never block readers.
+     * Read the units with the getters, then call {@link #validate(long)};
+     * if it fails, read a {@link #snapshot()} instead of retrying.
+     * @return long
+     */
+    public long tryOptimisticRead() {
+        return state.get().getVersion();
+    }
+
+    /**
+     * Returns true if the inventory has not changed since the given
+     * stamp was returned by {@link #tryOptimisticRead()}, so every value
+     * read since then belongs to one consistent state.
+     * @param stamp
+     * @return boolean
+     */
+    public boolean validate(long stamp) {
+        return state.get().getVersion() == stamp;
+    }
+
+    /**
+     * Returns the tracker of how fast this inventory's ingredients are
+     * used up by brewing.
+     * @return ConsumptionTracker
+     */
+    public ConsumptionTracker getConsumption() {
+        return consumption;
+    }
+
+    /**
+     * Returns the number of times an update had to be retried because
+     * another update changed the inventory first.
+     * @return long
+     */
+    public long getContendedUpdates() {
+        return contendedUpdates.sum();
+    }
+
+    /**
+     * Returns the current contents of the inventory.  The same
+     * snapshot is returned until the inventory changes.
+     * @return InventorySnapshot
      */
-    public synchronized boolean useIngredients(Recipe r) {
-    	if (enoughIngredients(r)) {
-	    	Inventory.coffee += r.getAmtCoffee();
-	    	Inventory.milk -= r.getAmtMilk();
-	    	Inventory.sugar -= r.getAmtSugar();
-	    	Inventory.chocolate -= r.getAmtChocolate();
-	    	return true;
-    	} else {
-    		return false;
-    	}
+    public InventorySnapshot snapshot() {
+        return state.get();
     }
-    
+
+    /**
+     * Copies the current units of every ingredient into the given
+     * array and returns the version they were read at.
+     * @param dest array with room for every ingredient
+     * @return long
+     */
+    public long copyUnits(int[] dest) {
+        InventorySnapshot current = state.get();
+        current.copyUnits(dest);
+        return current.getVersion();
+    }
+
     /**
-     * Returns a string describing the current contents 
+     * Returns a string describing the current contents
      * of the inventory.
      * @return String
      */
     public String toString() {
-    	StringBuffer buf = new StringBuffer();
-    	buf.append("Coffee: ");
-    	buf.append(getCoffee());
-    	buf.append("\n");
-    	buf.append("Milk: ");
-    	buf.append(getMilk());
-    	buf.append("\n");
-    	buf.append("Sugar: ");
-    	buf.append(getSugar());
-    	buf.append("\n");
-    	buf.append("Chocolate: ");
-    	buf.append(getChocolate());
-    	buf.append("\n");
-    	return buf.toString();
+        return state.get().toString();
+    }
+
+    /**
+     * Replaces the units of every ingredient at once.  Used to restore
+     * a saved inventory.
+     */
+    void restoreUnits(int[] units) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] restored = current.units.clone();
+            System.arraycopy(units, 0, restored, 0, Math.min(units.length, restored.length));
+            if (state.compareAndSet(current, next(restored, current))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the given, possibly negative, number of units to an
+     * ingredient without any checks.  Used to replay logged changes.
+     */
+    void adjustUnits(int ingredient, int delta) {
+        update(ingredient, delta, true);
+    }
+
+    /**
+     * Adds the given, possibly negative, number of units to each
+     * ingredient in one update without any checks.
+     */
+    void adjustUnits(int[] deltas) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] units = current.units.clone();
+            for (int i = 0; i < deltas.length; i++) {
+                units[i] += deltas[i];
+            }
+            if (state.compareAndSet(current, next(units, current))) {
+                return;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    /**
+     * Adds the given non-negative number of units to each ingredient in
+     * one update.  If any ingredient would go past Integer.MAX_VALUE
+     * units nothing is added.
+     * @throws InventoryException naming the first ingredient that would
+     * overflow
+     */
+    void addUnits(int[] amounts) throws InventoryException {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] units = current.units.clone();
+            for (int i = 0; i < amounts.length; i++) {
+                if (units[i] > Integer.MAX_VALUE - amounts[i]) {
+                    throw overflowUnits[i];
+                }
+                units[i] += amounts[i];
+            }
+            if (state.compareAndSet(current, next(units, current))) {
+                return;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    /**
+     * Throws if adding the given amounts, one per ingredient, to the
+     * current stock would take any ingredient past Integer.MAX_VALUE
+     * units.
+     * @throws InventoryException naming the first ingredient that would
+     * overflow
+     */
+    void checkHeadroom(int[] amounts) throws InventoryException {
+        int[] units = state.get().units;
+        for (int i = 0; i < amounts.length; i++) {
+            if (units[i] > Integer.MAX_VALUE - amounts[i]) {
+                throw overflowUnits[i];
+            }
+        }
+    }
+
+    /**
+     * Parses the amounts of the first units.length ingredients into an
+     * array with one entry per ingredient.  Throws for the first amount
+     * that is not a non-negative integer.
+     */
+    int[] parseUnits(String... units) throws InventoryException {
+        if (units.length > ingredients.size()) {
+            throw new IllegalArgumentException("Only " + ingredients.size() + " ingredients are stocked");
+        }
+        int[] amounts = new int[ingredients.size()];
+        for (int i = 0; i < units.length; i++) {
+            amounts[i] = Units.parse(units[i]);
+            if (amounts[i] == Units.INVALID) {
+                throw invalidUnits[i];
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Removes the ingredients of the recipe, as
+     * {@link #useIngredients(CompiledRecipe)} does, but without counting
+     * them as used; they are either used or given back later.
+     */
+    boolean reserveIngredients(CompiledRecipe r) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            if (!r.isCoveredBy(current.units)) {
+                return false;
+            }
+            int[] units = current.units.clone();
+            r.deductFrom(units);
+            if (state.compareAndSet(current, next(units, current))) {
+                return true;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    /**
+     * Gives back the ingredients of a recipe reserved with
+     * {@link #reserveIngredients(CompiledRecipe)}.
+     */
+    void releaseIngredients(CompiledRecipe r) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] units = current.units.clone();
+            r.addTo(units);
+            if (state.compareAndSet(current, next(units, current))) {
+                return;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    /**
+     * Removes up to the given number of units of an ingredient, as many
+     * as there are, and returns how many were removed.  Used to move
+     * stock between coffee makers.
+     */
+    int takeUnits(int ingredient, int max) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int taken = Math.min(max, current.units[ingredient]);
+            if (taken <= 0) {
+                return 0;
+            }
+            int[] units = current.units.clone();
+            units[ingredient] -= taken;
+            if (state.compareAndSet(current, next(units, current))) {
+                return taken;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    private void update(int ingredient, int amount, boolean relative) {
+        while (true) {
+            InventorySnapshot current = state.get();
+            int[] units = current.units.clone();
+            units[ingredient] = relative ? units[ingredient] + amount : amount;
+            if (state.compareAndSet(current, next(units, current))) {
+                return;
+            }
+            contendedUpdates.increment();
+        }
+    }
+
+    private InventorySnapshot next(int[] units, InventorySnapshot current) {
+        return new InventorySnapshot(ingredients, units, current.getVersion() + 1);
     }
 }
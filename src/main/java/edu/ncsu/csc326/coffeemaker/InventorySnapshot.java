@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+/**
+ * Immutable stock levels of an {@link Inventory} at one version.  The
+ * inventory publishes a new snapshot with every change and hands out the
+ * current one as is, so polling an unchanged inventory allocates nothing.
+ * The text form is built the first time it is asked for and then kept.
+ */
+public final class InventorySnapshot {
+    private final Ingredients ingredients;
+    /**
+     * Units of each ingredient; never modified once published.
+     */
+    final int[] units;
+    private final long version;
+    private volatile String text;
+
+    InventorySnapshot(Ingredients ingredients, int[] units, long version) {
+        this.ingredients = ingredients;
+        this.units = units;
+        this.version = version;
+    }
+
+    /**
+     * Returns the ingredients the snapshot covers.
+     * @return Ingredients
+     */
+    public Ingredients getIngredients() {
+        return ingredients;
+    }
+
+    /**
+     * Returns the inventory version this snapshot was taken at.
+     * @return long
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the units of the given ingredient.
+     * @param ingredient index in {@link Ingredients}
+     * @return int
+     */
+    public int getUnits(int ingredient) {
+        return units[ingredient];
+    }
+
+    /**
+     * Copies the units of every ingredient into the given array, which
+     * must have room for {@link Ingredients#size()} values.
+     * @param dest
+     */
+    public void copyUnits(int[] dest) {
+        System.arraycopy(units, 0, dest, 0, units.length);
+    }
+
+    /**
+     * Returns a string describing the contents of the inventory.
+     * @return String
+     */
+    public String toString() {
+        String s = text;
+        if (s == null) {
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < units.length; i++) {
+                buf.append(ingredients.getName(i));
+                buf.append(": ");
+                buf.append(units[i]);
+                buf.append("\n");
+            }
+            s = buf.toString();
+            text = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Load generator for {@link CoffeeMakerServer}.  Opens many connections
+ * from one thread and keeps a fixed number of BUY commands in flight on
+ * each, then reports the throughput and how many purchases succeeded.
+ * <pre>
+ * LoadGenerator host port connections requestsPerConnection pipelineDepth
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final byte[] BUY_LINE = "BUY 0 100\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One client connection and its progress.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer out;
+        int sent;
+        int received;
+        int ok;
+        /**
+         * True when the next byte read starts a reply line
+         */
+        boolean atLineStart = true;
+
+        Client(SocketChannel channel, int depth) {
+            this.channel = channel;
+            this.out = ByteBuffer.allocate(BUY_LINE.length * depth);
+            out.flip();
+        }
+    }
+
+    /**
+     * Runs the load generator.
+     * @param args host, port, connections, requests per connection and
+     * pipeline depth
+     */
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8326;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+        setUp(host, port, (long) connections * requests);
+
+        long start = System.nanoTime();
+        Client[] clients = run(new InetSocketAddress(host, port), connections, requests, depth);
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        long ok = 0;
+        for (Client c : clients) {
+            total += c.received;
+            ok += c.ok;
+        }
+        System.out.println(connections + " connections, " + total + " requests in "
+                + (elapsed / 1000000) + " ms: " + (total * 1000000000L / Math.max(1, elapsed))
+                + " requests/s, " + ok + " purchases");
+    }
+
+    /**
+     * Adds the recipe in slot 0 and stocks enough coffee for every
+     * request, over an ordinary blocking connection.
+     */
+    private static void setUp(String host, int port, long requests) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write(("ADD 50 1 0 0 0 Load test\nRESTOCK " + Math.min(requests, Integer.MAX_VALUE - 15)
+                    + " 0 0 0\nQUIT\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply;
+            while ((reply = in.readLine()) != null) {
+                System.out.println(reply);
+            }
+        }
+    }
+
+    private static Client[] run(InetSocketAddress address, int connections, int requests, int depth)
+            throws IOException {
+        Selector selector = Selector.open();
+        Client[] clients = new Client[connections];
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(address);
+            clients[i] = new Client(channel, depth);
+            channel.register(selector, SelectionKey.OP_CONNECT, clients[i]);
+        }
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        int done = 0;
+        while (done < connections) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client c = (Client) key.attachment();
+                if (key.isConnectable()) {
+                    c.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    send(c, key, requests, depth);
+                    continue;
+                }
+                if (key.isWritable()) {
+                    send(c, key, requests, depth);
+                }
+                if (key.isReadable()) {
+                    in.clear();
+                    if (c.channel.read(in) < 0) {
+                        throw new IOException("server closed the connection");
+                    }
+                    in.flip();
+                    while (in.hasRemaining()) {
+                        byte b = in.get();
+                        if (c.atLineStart && b == 'O') {
+                            c.ok++;
+                        }
+                        c.atLineStart = b == '\n';
+                        if (b == '\n') {
+                            c.received++;
+                        }
+                    }
+                    if (c.received == requests) {
+                        c.channel.close();
+                        done++;
+                    } else {
+                        send(c, key, requests, depth);
+                    }
+                }
+            }
+        }
+        selector.close();
+        return clients;
+    }
+
+    /**
+     * Tops up the commands in flight to the pipeline depth.
+     */
+    private static void send(Client c, SelectionKey key, int requests, int depth) throws IOException {
+        if (!c.out.hasRemaining()) {
+            int more = Math.min(requests - c.sent, depth - (c.sent - c.received));
+            if (more <= 0) {
+                return;
+            }
+            c.out.clear();
+            for (int i = 0; i < more; i++) {
+                c.out.put(BUY_LINE);
+            }
+            c.out.flip();
+            c.sent += more;
+        }
+        c.channel.write(c.out);
+        key.interestOps(c.out.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+}
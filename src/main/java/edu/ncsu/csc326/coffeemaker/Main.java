@@ -14,8 +14,17 @@
 package edu.ncsu.csc326.coffeemaker;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
 import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
@@ -24,16 +33,33 @@ import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
  * 
  * @author Sarah Heckman
  *
- * Starts the console UI for the CoffeeMaker
+ * Starts the console UI for the CoffeeMaker.  With
+ * <code>--serve port</code> it serves the coffee maker over the
+ * network with {@link CoffeeMakerServer} instead, and with
+ * <code>--script file</code> it runs the commands of
+ * {@link CommandProcessor} from a file, or from standard input if the
+ * file is <code>-</code>, and prints one reply per command.
  */
 public class Main {
     private static CoffeeMaker coffeeMaker;
+    private static BufferedReader input;
 
     /**
      * Prints the main menu and handles user input for 
-     * main menu commands.
+     * main menu commands until the user exits.  Each command
+     * returns here, so the stack does not grow with the
+     * number of commands.
      */
     public static void mainMenu() {
+    	while (true) {
+    		menuCommand();
+    	}
+    }
+
+    /**
+     * Prints the main menu and runs one main menu command.
+     */
+    private static void menuCommand() {
         System.out.println("1. Add a recipe");
         System.out.println("2. Delete a recipe");
         System.out.println("3. Edit a recipe");
@@ -56,11 +82,9 @@ public class Main {
 		        if (userInput == 0) System.exit(0);
         	} else {
         		System.out.println("Please enter a number from 0 - 6");
-            	mainMenu();
         	}
         } catch (NumberFormatException e) {
         	System.out.println("Please enter a number from 0 - 6");
-        	mainMenu();
         }
     }
     
@@ -105,8 +129,6 @@ public class Main {
 		    }
 		} catch (RecipeException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			mainMenu();
 		}
     }
     
@@ -120,10 +142,10 @@ public class Main {
         		System.out.println((i+1) + ". " + recipes[i].getName());
         	}
         }
-        int recipeToDelete = recipeListSelection("Please select the number of the recipe to delete.");
+        int recipeToDelete = recipeListSelection("Please select the number of the recipe to delete.", recipes.length);
         
 	    if(recipeToDelete < 0) {
-	    	mainMenu();
+	    	return;
 	    }
 	    
         String recipeDeleted = coffeeMaker.deleteRecipe(recipeToDelete);
@@ -133,7 +155,6 @@ public class Main {
         } else {
 	        System.out.println("Selected recipe doesn't exist and could not be deleted.\n");
         }
-        mainMenu();
     }
     
     /**
@@ -146,10 +167,10 @@ public class Main {
         		System.out.println((i+1) + ". " + recipes[i].getName());
         	}
         }
-        int recipeToEdit = recipeListSelection("Please select the number of the recipe to edit.");
+        int recipeToEdit = recipeListSelection("Please select the number of the recipe to edit.", recipes.length);
         
 	    if(recipeToEdit < 0) {
-	    	mainMenu();
+	    	return;
 	    }
 	    
 	    //Read in recipe price
@@ -185,8 +206,6 @@ public class Main {
 		    }
 		} catch (RecipeException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			mainMenu();
 		}
     }
     
@@ -211,8 +230,6 @@ public class Main {
         	System.out.println("Inventory successfully added");
         } catch (InventoryException e) {
         	System.out.println("Inventory was not added");
-        } finally {
-        	mainMenu();
         }
     }
     
@@ -221,7 +238,6 @@ public class Main {
      */
     public static void checkInventory() {
     	System.out.println(coffeeMaker.checkInventory());
-    	mainMenu();
     }
     
     /**
@@ -235,7 +251,10 @@ public class Main {
         	}
         }
         
-        int recipeToPurchase = recipeListSelection("Please select the number of the recipe to purchase.");
+        int recipeToPurchase = recipeListSelection("Please select the number of the recipe to purchase.", recipes.length);
+        if (recipeToPurchase < 0) {
+        	return;
+        }
         
         String amountPaid = inputOutput("Please enter the amount you wish to pay");
         int amtPaid = 0;
@@ -243,36 +262,45 @@ public class Main {
         	amtPaid = Integer.parseInt(amountPaid);
         } catch (NumberFormatException e) {
         	System.out.println("Please enter a positive integer");
-        	mainMenu();
+        	return;
         }
         
-        int change = coffeeMaker.makeCoffee(recipeToPurchase, amtPaid);
+        long result = coffeeMaker.purchase(recipeToPurchase, amtPaid);
         
-        if (change == amtPaid) {
-        	System.out.println("Insufficient funds to purchase.");
-        } else {
-        	System.out.println("Thank you for purchasing " + coffeeMaker.getRecipes()[recipeToPurchase].getName());
+        switch (PurchaseResult.outcome(result)) {
+        	case SUCCESS:
+        		System.out.println("Thank you for purchasing " + recipes[recipeToPurchase].getName());
+        		break;
+        	case NO_RECIPE:
+        		System.out.println("Selected recipe doesn't exist.");
+        		break;
+        	case INSUFFICIENT_FUNDS:
+        		System.out.println("Insufficient funds to purchase.");
+        		break;
+        	case OUT_OF_INGREDIENTS:
+        		System.out.println("Not enough inventory to make this beverage.");
+        		break;
         }
-        System.out.println("Your change is: " + change + "\n");
-        mainMenu();
+        System.out.println("Your change is: " + PurchaseResult.change(result) + "\n");
     }
     
     /**
      * Passes a prompt to the user and returns the user specified 
-     * string.
+     * string.  Exits at the end of the input.
      * @param message
      * @return String
      */
     private static String inputOutput(String message) {
         System.out.println(message);
-	    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 	    String returnString = "";
 	    try {
-	        returnString = br.readLine();
+	        returnString = input.readLine();
 	    }
 	    catch (IOException e){
 	        System.out.println("Error reading in value");
-	        mainMenu();
+	    }
+	    if (returnString == null) {
+	    	System.exit(0);
 	    }
 	    return returnString;
     }
@@ -281,20 +309,21 @@ public class Main {
      * Passes a prompt to the user that deals with the recipe list
      * and returns the user selected number.
      * @param message
+     * @param numRecipes number of recipe slots to choose from
      * @return int
      */
-    private static int recipeListSelection(String message) {
+    private static int recipeListSelection(String message, int numRecipes) {
     	String userSelection = inputOutput(message);
     	int recipe = 0;
         try {
         	recipe = Integer.parseInt(userSelection) - 1;
-        	if (recipe >= 0 && recipe <=2) {
+        	if (recipe >= 0 && recipe < numRecipes) {
         		//do nothing here.
         	} else {
         		recipe = -1;
         	}
         } catch (NumberFormatException e) {
-        	System.out.println("Please select a number from 1-3.");
+        	System.out.println("Please select a number from 1-" + numRecipes + ".");
         	recipe = -1;
         }
         return recipe;
@@ -302,11 +331,45 @@ public class Main {
     
     /**
      * Starts the coffee maker program.
-     * @param args
+     * @param args <code>--serve port [threads]</code> to serve
+     * the coffee maker over the network, or <code>--script file</code>
+     * to run a script, instead of the console
+     * @throws IOException
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 	    coffeeMaker = new CoffeeMaker();
+	    if (args.length >= 2 && args[0].equals("--serve")) {
+	    	int threads = args.length >= 3 ? Integer.parseInt(args[2])
+	    			: Runtime.getRuntime().availableProcessors();
+	    	CoffeeMakerServer server = new CoffeeMakerServer(coffeeMaker, Integer.parseInt(args[1]), threads);
+	    	System.out.println("CoffeeMaker serving on port " + server.getPort());
+	    	try {
+	    		Thread.currentThread().join();
+	    	} catch (InterruptedException e) {
+	    		server.close();
+	    	}
+	    	return;
+	    }
+	    if (args.length >= 2 && args[0].equals("--script")) {
+	    	runScript(args[1]);
+	    	return;
+	    }
+	    input = new BufferedReader(new InputStreamReader(System.in));
 	    System.out.println("Welcome to the CoffeeMaker!\n");
 	    mainMenu();
 	}
+
+    /**
+     * Runs a script of commands and writes the replies to standard
+     * output through one large buffer.
+     * @param file script file, or - for standard input
+     * @throws IOException
+     */
+    private static void runScript(String file) throws IOException {
+    	InputStream in = file.equals("-") ? System.in : Files.newInputStream(Paths.get(file));
+    	try (BufferedReader script = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+    		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+    		new CommandProcessor(coffeeMaker).run(script, out);
+    	}
+    }
 }
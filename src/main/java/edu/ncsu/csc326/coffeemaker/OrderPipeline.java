@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes purchases for a {@link CoffeeMaker} without making the caller
+ * wait for them.  {@link #submit(int, int)} puts the order in a bounded
+ * ring buffer and returns a future of its {@link PurchaseResult}; one
+ * consumer thread takes whatever orders are waiting and makes them
+ * together with {@link CoffeeMaker#purchaseBatch(int[], int[], long[])}.
+ *
+ * Any number of threads may submit.  A submitter claims a slot with one
+ * compare-and-set and never blocks: if the ring is full the order is
+ * refused at once with a future that fails with
+ * {@link RejectedExecutionException}, so a burst shows up as refused
+ * orders instead of a pile of waiting threads.  Futures are completed
+ * on the consumer thread, so work that depends on them should be
+ * chained with the async methods of {@link CompletableFuture}.
+ */
+public class OrderPipeline implements Closeable {
+
+    /**
+     * Most orders made in one batch
+     */
+    private static final int MAX_BATCH = 64;
+    /**
+     * Set in {@link #tail} once the pipeline is closed
+     */
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final CoffeeMaker coffeeMaker;
+    private final int mask;
+    /**
+     * Position each slot is ready for: a submitter may fill slot i at
+     * position p when it holds p, and the consumer may take it when it
+     * holds p + 1.
+     */
+    private final AtomicLongArray sequences;
+    private final int[] recipes;
+    private final int[] payments;
+    private final Object[] futures;
+    /**
+     * Next position to claim, with {@link #CLOSED} set once no more
+     * orders are taken
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Next position to take; only written by the consumer
+     */
+    private volatile long head;
+    private volatile boolean sleeping;
+    private final LongAdder rejected = new LongAdder();
+    private final Thread consumer;
+
+    /**
+     * Starts a pipeline for the coffee maker that holds up to the given
+     * number of waiting orders, rounded up to a power of two.
+     *
+     * @param coffeeMaker
+     * @param capacity
+     */
+    public OrderPipeline(CoffeeMaker coffeeMaker, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.coffeeMaker = coffeeMaker;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.recipes = new int[size];
+        this.payments = new int[size];
+        this.futures = new Object[size];
+        this.consumer = new Thread(this::consume, "coffeemaker-orders");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Submits a purchase and returns a future of its
+     * {@link PurchaseResult}.  The future fails with
+     * {@link RejectedExecutionException} if the pipeline is full or
+     * closed.
+     *
+     * @param recipeToPurchase
+     * @param amtPaid
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Long> submit(int recipeToPurchase, int amtPaid) {
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        long pos = tail.get();
+        while (true) {
+            if (pos < 0) {
+                return reject(future, "Order pipeline is closed");
+            }
+            long seq = sequences.get((int) pos & mask);
+            if (seq < pos) {
+                return reject(future, "Order pipeline is full");
+            }
+            if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+                break;
+            }
+            pos = tail.get();
+        }
+        int slot = (int) pos & mask;
+        recipes[slot] = recipeToPurchase;
+        payments[slot] = amtPaid;
+        futures[slot] = future;
+        sequences.set(slot, pos + 1);
+        if (sleeping) {
+            LockSupport.unpark(consumer);
+        }
+        return future;
+    }
+
+    /**
+     * Returns the number of orders waiting to be taken by the consumer.
+     *
+     * @return int
+     */
+    public int getQueueSize() {
+        return (int) Math.max(0, (tail.get() & ~CLOSED) - head);
+    }
+
+    /**
+     * Returns the number of orders refused because the pipeline was
+     * full or closed.
+     *
+     * @return long
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stops taking orders, waits for every order already taken to be
+     * made and stops the consumer thread.
+     */
+    public void close() {
+        long pos = tail.get();
+        while (pos >= 0 && !tail.compareAndSet(pos, pos | CLOSED)) {
+            pos = tail.get();
+        }
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Long> reject(CompletableFuture<Long> future, String message) {
+        rejected.increment();
+        future.completeExceptionally(new RejectedExecutionException(message));
+        return future;
+    }
+
+    /**
+     * Body of the consumer thread: makes the waiting orders in batches,
+     * parks while there are none and returns once the pipeline is
+     * closed and every order claimed before that has been made.
+     */
+    private void consume() {
+        int[] batchRecipes = new int[MAX_BATCH];
+        int[] batchPayments = new int[MAX_BATCH];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Long>[] batchFutures = new CompletableFuture[MAX_BATCH];
+        long[] results = new long[MAX_BATCH];
+        while (true) {
+            long next = head;
+            int n = 0;
+            while (n < MAX_BATCH && sequences.get((int) next & mask) == next + 1) {
+                int slot = (int) next & mask;
+                batchRecipes[n] = recipes[slot];
+                batchPayments[n] = payments[slot];
+                @SuppressWarnings("unchecked")
+                CompletableFuture<Long> future = (CompletableFuture<Long>) futures[slot];
+                batchFutures[n++] = future;
+                futures[slot] = null;
+                sequences.set(slot, next + mask + 1);
+                next++;
+            }
+            head = next;
+            if (n > 0) {
+                make(n, batchRecipes, batchPayments, batchFutures, results);
+                continue;
+            }
+            long end = tail.get();
+            if (end < 0 && next == (end & ~CLOSED)) {
+                return;
+            }
+            sleeping = true;
+            if (tail.get() >= 0 && sequences.get((int) next & mask) != next + 1) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+    }
+
+    private void make(int n, int[] batchRecipes, int[] batchPayments,
+                      CompletableFuture<Long>[] batchFutures, long[] results) {
+        try {
+            if (n == MAX_BATCH) {
+                coffeeMaker.purchaseBatch(batchRecipes, batchPayments, results);
+            } else {
+                coffeeMaker.purchaseBatch(Arrays.copyOf(batchRecipes, n), Arrays.copyOf(batchPayments, n), results);
+            }
+            for (int i = 0; i < n; i++) {
+                batchFutures[i].complete(results[i]);
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < n; i++) {
+                batchFutures[i].completeExceptionally(e);
+            }
+        }
+        Arrays.fill(batchFutures, 0, n, null);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+/**
+ * How a purchase ended.
+ */
+public enum PurchaseOutcome {
+    /**
+     * The beverage was made and the change returned
+     */
+    SUCCESS,
+    /**
+     * There is no recipe with the given number
+     */
+    NO_RECIPE,
+    /**
+     * The amount paid does not cover the price
+     */
+    INSUFFICIENT_FUNDS,
+    /**
+     * The inventory does not hold enough of some ingredient
+     */
+    OUT_OF_INGREDIENTS,
+    /**
+     * The hold being committed was released or has expired
+     */
+    HOLD_EXPIRED
+}
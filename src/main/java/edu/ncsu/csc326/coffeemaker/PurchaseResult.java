@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+/**
+ * Packs the outcome and change of a purchase into one long, so that
+ * {@link CoffeeMaker#purchase(int, int)} can report both without
+ * allocating.  The outcome is kept in the high half and the change in the
+ * low half; use the static methods of this class to take a result apart.
+ */
+public final class PurchaseResult {
+
+    private static final PurchaseOutcome[] OUTCOMES = PurchaseOutcome.values();
+
+    private PurchaseResult() {
+    }
+
+    /**
+     * Returns the packed result of a purchase.
+     * @param outcome
+     * @param change
+     * @return long
+     */
+    public static long of(PurchaseOutcome outcome, int change) {
+        return (long) outcome.ordinal() << 32 | (change & 0xffffffffL);
+    }
+
+    /**
+     * Returns the outcome of a packed result.
+     * @param result
+     * @return PurchaseOutcome
+     */
+    public static PurchaseOutcome outcome(long result) {
+        return OUTCOMES[(int) (result >>> 32)];
+    }
+
+    /**
+     * Returns the change of a packed result: the amount paid less the
+     * price if the beverage was made, and the whole amount paid if not.
+     * @param result
+     * @return int
+     */
+    public static int change(long result) {
+        return (int) result;
+    }
+
+    /**
+     * Returns true if the beverage of a packed result was made.
+     * @param result
+     * @return boolean
+     */
+    public static boolean isSuccess(long result) {
+        return result >>> 32 == PurchaseOutcome.SUCCESS.ordinal();
+    }
+
+    /**
+     * Returns a description of a packed result.
+     * @param result
+     * @return String
+     */
+    public static String toString(long result) {
+        return outcome(result) + " " + change(result);
+    }
+}
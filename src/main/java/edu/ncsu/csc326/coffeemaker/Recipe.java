@@ -13,18 +13,46 @@
  */
 package edu.ncsu.csc326.coffeemaker;
 
+import java.util.Arrays;
+
 import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
 
 /**
  * @author   Sarah Heckman
  */
 public class Recipe {
+    /*
+     * Rejections are thrown from these shared, stackless exceptions, so
+     * bad input costs no allocation or stack walk.
+     */
+    private static final RecipeException INVALID_COFFEE =
+            new RecipeException("Units of coffee must be a positive integer", false);
+    private static final RecipeException INVALID_MILK =
+            new RecipeException("Units of milk must be a positive integer", false);
+    private static final RecipeException INVALID_SUGAR =
+            new RecipeException("Units of sugar must be a positive integer", false);
+    private static final RecipeException INVALID_CHOCOLATE =
+            new RecipeException("Units of chocolate must be a positive integer", false);
+    private static final RecipeException INVALID_UNITS =
+            new RecipeException("Units must be a positive integer", false);
+    private static final RecipeException INVALID_PRICE =
+            new RecipeException("Price must be a positive integer", false);
+
     private String name;
     private int price;
-    private int amtCoffee;
-    private int amtMilk;
-    private int amtSugar;
-    private int amtChocolate;
+    /**
+     * Units of each ingredient, indexed like {@link Ingredients}.
+     */
+    private int[] amounts;
+    /**
+     * Immutable form of this recipe; cleared whenever a setter runs.
+     */
+    private volatile CompiledRecipe compiled;
+    /**
+     * Set on the copies kept by a {@link RecipeBook}, which must not
+     * change behind its back.
+     */
+    private boolean frozen;
     
     /**
      * Creates a default recipe for the coffee maker.
@@ -32,100 +60,85 @@ public class Recipe {
     public Recipe() {
     	this.name = "";
     	this.price = 0;
-    	this.amtCoffee = 0;
-    	this.amtMilk = 0;
-    	this.amtSugar = 0;
-    	this.amtChocolate = 0;
+    	this.amounts = new int[Ingredients.DEFAULT.size()];
     }
     
     /**
 	 * @return   Returns the amtChocolate.
 	 */
     public int getAmtChocolate() {
-		return amtChocolate;
+		return getAmount(Ingredients.CHOCOLATE);
 	}
     /**
-	 * @param amtChocolate   The amtChocolate to set.
+	 * @param chocolate   The amtChocolate to set.
 	 */
     public void setAmtChocolate(String chocolate) throws RecipeException {
-    	int amtChocolate = 0;
-    	try {
-    		amtChocolate = Integer.parseInt(chocolate);
-    	} catch (NumberFormatException e) {
-    		throw new RecipeException("Units of chocolate must be a positive integer");
-    	}
-		if (amtChocolate >= 0) {
-			this.amtChocolate = amtChocolate;
-		} else {
-			throw new RecipeException("Units of chocolate must be a positive integer");
-		}
+    	setAmount(Ingredients.CHOCOLATE, chocolate, INVALID_CHOCOLATE);
 	}
     /**
 	 * @return   Returns the amtCoffee.
 	 */
     public int getAmtCoffee() {
-		return amtCoffee;
+		return getAmount(Ingredients.COFFEE);
 	}
     /**
-	 * @param amtCoffee   The amtCoffee to set.
+	 * @param coffee   The amtCoffee to set.
 	 */
     public void setAmtCoffee(String coffee) throws RecipeException {
-    	int amtCoffee = 0;
-    	try {
-    		amtCoffee = Integer.parseInt(coffee);
-    	} catch (NumberFormatException e) {
-    		throw new RecipeException("Units of coffee must be a positive integer");
-    	}
-		if (amtCoffee >= 0) {
-			this.amtCoffee = amtCoffee;
-		} else {
-			throw new RecipeException("Units of coffee must be a positive integer");
-		}
+    	setAmount(Ingredients.COFFEE, coffee, INVALID_COFFEE);
 	}
     /**
 	 * @return   Returns the amtMilk.
 	 */
     public int getAmtMilk() {
-		return amtMilk;
+		return getAmount(Ingredients.MILK);
 	}
     /**
-	 * @param amtMilk   The amtMilk to set.
+	 * @param milk   The amtMilk to set.
 	 */
     public void setAmtMilk(String milk) throws RecipeException{
-    	int amtMilk = 0;
-    	try {
-    		amtMilk = Integer.parseInt(milk);
-    	} catch (NumberFormatException e) {
-    		throw new RecipeException("Units of milk must be a positive integer");
-    	}
-		if (amtMilk >= 0) {
-			this.amtMilk = amtMilk;
-		} else {
-			throw new RecipeException("Units of milk must be a positive integer");
-		}
+    	setAmount(Ingredients.MILK, milk, INVALID_MILK);
 	}
     /**
 	 * @return   Returns the amtSugar.
 	 */
     public int getAmtSugar() {
-		return amtSugar;
+		return getAmount(Ingredients.SUGAR);
 	}
     /**
-	 * @param amtSugar   The amtSugar to set.
+	 * @param sugar   The amtSugar to set.
 	 */
     public void setAmtSugar(String sugar) throws RecipeException {
-    	int amtSugar = 0;
-    	try {
-    		amtSugar = Integer.parseInt(sugar);
-    	} catch (NumberFormatException e) {
-    		throw new RecipeException("Units of sugar must be a positive integer");
-    	}
-		if (amtSugar >= 0) {
-			this.amtSugar = amtSugar;
-		} else {
-			throw new RecipeException("Units of sugar must be a positive integer");
-		}
+    	setAmount(Ingredients.SUGAR, sugar, INVALID_SUGAR);
 	}
+    /**
+     * Returns the units of any ingredient used by the recipe.
+     * @param ingredient   index in {@link Ingredients}
+     * @return int
+     */
+    public int getAmount(int ingredient) {
+    	return ingredient < amounts.length ? amounts[ingredient] : 0;
+    }
+    /**
+     * Sets the units of any ingredient used by the recipe.
+     * @param ingredient   index in {@link Ingredients}
+     * @param amount   The units to set.
+     */
+    public void setAmount(int ingredient, String amount) throws RecipeException {
+    	setAmount(ingredient, amount, INVALID_UNITS);
+    }
+    private void setAmount(int ingredient, String amount, RecipeException invalid) throws RecipeException {
+    	checkNotFrozen();
+    	int units = Units.parse(amount);
+		if (units == Units.INVALID) {
+			throw invalid;
+		}
+		if (ingredient >= amounts.length) {
+			amounts = Arrays.copyOf(amounts, ingredient + 1);
+		}
+		amounts[ingredient] = units;
+		compiled = null;
+    }
     /**
 	 * @return   Returns the name.
 	 */
@@ -136,8 +149,10 @@ public class Recipe {
 	 * @param name   The name to set.
 	 */
     public void setName(String name) {
+    	checkNotFrozen();
     	if(name != null) {
     		this.name = name;
+    		compiled = null;
     	}
 	}
     /**
@@ -150,19 +165,51 @@ public class Recipe {
 	 * @param price   The price to set.
 	 */
     public void setPrice(String price) throws RecipeException{
-    	int amtPrice = 0;
-    	try {
-    		amtPrice = Integer.parseInt(price);
-    	} catch (NumberFormatException e) {
-    		throw new RecipeException("Price must be a positive integer");
-    	}
-		if (amtPrice >= 0) {
-			this.price = amtPrice;
-		} else {
-			throw new RecipeException("Price must be a positive integer");
+    	checkNotFrozen();
+    	int amtPrice = Units.parse(price);
+		if (amtPrice == Units.INVALID) {
+			throw INVALID_PRICE;
 		}
+		this.price = amtPrice;
+		compiled = null;
 	} 
     
+    /**
+     * Returns the immutable form of this recipe.  It is built on the
+     * first call and reused until one of the setters changes the recipe.
+     * @return CompiledRecipe
+     */
+    public CompiledRecipe compile() {
+        CompiledRecipe c = compiled;
+        if (c == null) {
+            c = new CompiledRecipe(name, price, amounts);
+            compiled = c;
+        }
+        return c;
+    }
+    
+    /**
+     * Returns a compiled copy of this recipe under the given name whose
+     * setters throw UnsupportedOperationException.  Recipe books keep
+     * these copies, so changing a recipe after adding it does not change
+     * the menu.
+     */
+    Recipe frozenCopy(String name) {
+        Recipe copy = new Recipe();
+        copy.name = name;
+        copy.price = price;
+        copy.amounts = amounts.clone();
+        copy.compile();
+        copy.frozen = true;
+        return copy;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Recipe " + name + " belongs to a recipe book and cannot be changed");
+        }
+    }
+
     /**
      * Returns the name of the recipe.
      * @return String
@@ -13,57 +13,148 @@
  */
 package edu.ncsu.csc326.coffeemaker;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recipes of the coffee maker, kept in numbered slots.  A recipe keeps
+ * its slot until it is deleted, recipes are found by name through a hash
+ * index, and the slot array grows when every slot is taken.
+ *
+ * Every change builds a new immutable menu and publishes it in one
+ * volatile write, so readers never lock and never see a change half
+ * applied.  Changes are serialized among themselves.  The book keeps
+ * its own unmodifiable, compiled copy of every recipe it is given, so
+ * the caller can reuse or change its recipe afterwards, and brewing
+ * finds the {@link CompiledRecipe} ready.
+ *
+ * The name index is not part of the menu: one concurrent map is updated
+ * in place and every lookup is checked against the slot array it read,
+ * so a change does not copy the index.  A change still copies the slot
+ * array, which is O(n) in the number of slots.  That copy is kept on
+ * purpose: {@link #getRecipes()} hands every reader the same flat array
+ * without locking or rebuilding it, and the availability caches key on
+ * its identity.  Copying the references is still far cheaper than
+ * copying a hash index of the same size.
+ */
 public class RecipeBook {
 
     /**
-     * Array of recipes in coffee maker
+     * Initial number of recipe slots in coffee maker
+     */
+    private static final int DEFAULT_CAPACITY = 4;
+
+    /**
+     * Immutable view of the recipe book.
+     */
+    private static final class Menu {
+        /**
+         * Array of recipes in coffee maker
+         */
+        final Recipe[] recipeArray;
+        final long version;
+
+        Menu(Recipe[] recipeArray, long version) {
+            this.recipeArray = recipeArray;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The current menu; replaced, never modified.
+     */
+    private volatile Menu menu;
+    /**
+     * Slots that currently hold a recipe; only used by writers
      */
-    private Recipe[] recipeArray;
+    private final BitSet usedSlots = new BitSet();
     /**
-     * Number of recipes in coffee maker
+     * Slot of each recipe, by name.  Added to before the menu holding
+     * the recipe is published and removed from after the menu without
+     * it is, so a reader that checks the slot against its menu never
+     * gets a wrong answer.
      */
-    private final int NUM_RECIPES = 4;
+    private final ConcurrentHashMap<String, Integer> slotsByName = new ConcurrentHashMap<String, Integer>();
 
     /**
      * Default constructor for a RecipeBook.
      */
     public RecipeBook() {
-        recipeArray = new Recipe[NUM_RECIPES];
+        this(DEFAULT_CAPACITY);
     }
 
     /**
-     * Returns the recipe array.
+     * Creates a RecipeBook with room for the given number of recipes
+     * before it has to grow.
+     *
+     * @param capacity
+     */
+    public RecipeBook(int capacity) {
+        menu = new Menu(new Recipe[Math.max(1, capacity)], 0);
+    }
+
+    /**
+     * Returns the recipe array of the current menu.  Empty slots are
+     * null.  The array is shared with other readers and must not be
+     * modified; later changes to the book publish a new array.  The
+     * recipes in it are the book's own copies and cannot be changed.
      *
-     * @param r
      * @return Recipe[]
      */
     public Recipe[] getRecipes() {
-        return recipeArray;
+        return menu.recipeArray;
     }
 
-    public boolean addRecipe(Recipe r) {
-        //Assume recipe doesn't exist in the array until
-        //find out otherwise
-        boolean exists = false;
-        //Check that recipe doesn't already exist in array
-        for (int i = 0; i < recipeArray.length; i++) {
-            if (r.equals(recipeArray[i])) {
-                exists = true;
-            }
+    /**
+     * Returns a number that changes every time a recipe is added,
+     * edited or deleted.
+     *
+     * @return long
+     */
+    public long getVersion() {
+        return menu.version;
+    }
+
+    /**
+     * Returns the slot of the recipe with the given name, or -1 if
+     * there is no such recipe.
+     *
+     * @param name
+     * @return int
+     */
+    public int indexOf(String name) {
+        Recipe[] recipes = menu.recipeArray;
+        Integer slot = slotsByName.get(name);
+        if (slot == null || slot >= recipes.length) {
+            return -1;
         }
-        //Assume recipe cannot be added until find an empty
-        //spot
-        boolean added = false;
-        //Check for first empty spot in array
-        if (!exists) {
-            for (int i = 0; i < recipeArray.length && !added; i++) {
-                if (recipeArray[i] == null) {
-                    recipeArray[i] = r;
-                    added = true;
-                }
-            }
+        Recipe r = recipes[slot];
+        return r != null && r.getName().equals(name) ? slot : -1;
+    }
+
+    /**
+     * Returns true if the recipe is added to the first empty slot,
+     * growing the book if every slot is taken, and false if a recipe
+     * with the same name already exists.
+     *
+     * @param r
+     * @return boolean
+     */
+    public synchronized boolean addRecipe(Recipe r) {
+        if (slotsByName.containsKey(r.getName())) {
+            return false;
         }
-        return added;
+        Recipe copy = r.frozenCopy(r.getName());
+        Menu current = menu;
+        int slot = usedSlots.nextClearBit(0);
+        int length = current.recipeArray.length;
+        Recipe[] recipes = Arrays.copyOf(current.recipeArray, slot < length ? length : length * 2);
+        recipes[slot] = copy;
+        usedSlots.set(slot);
+        slotsByName.put(copy.getName(), slot);
+        menu = new Menu(recipes, current.version + 1);
+        return true;
     }
 
     /**
@@ -73,33 +164,61 @@ public class RecipeBook {
      * @param recipeToDelete
      * @return String
      */
-    public String deleteRecipe(int recipeToDelete) {
-        if (recipeArray[recipeToDelete] != null) {
-            String recipeName = recipeArray[recipeToDelete].getName();
-            recipeArray[recipeToDelete] = new Recipe();
-            return recipeName;
-        } else {
+    public synchronized String deleteRecipe(int recipeToDelete) {
+        if (!isUsed(recipeToDelete)) {
             return null;
         }
+        Menu current = menu;
+        String recipeName = current.recipeArray[recipeToDelete].getName();
+        Recipe[] recipes = current.recipeArray.clone();
+        recipes[recipeToDelete] = null;
+        usedSlots.clear(recipeToDelete);
+        menu = new Menu(recipes, current.version + 1);
+        slotsByName.remove(recipeName);
+        return recipeName;
     }
 
     /**
      * Returns the name of the recipe edited at the position specified
-     * and null if the recipe does not exist.
+     * and null if the recipe does not exist.  The edited recipe keeps
+     * the name of the recipe it replaces; the given recipe itself is
+     * not renamed.
      *
      * @param recipeToEdit
      * @param newRecipe
      * @return String
      */
-    public String editRecipe(int recipeToEdit, Recipe newRecipe) {
-        if (recipeArray[recipeToEdit] != null) {
-            String recipeName = recipeArray[recipeToEdit].getName();
-            newRecipe.setName("");
-            recipeArray[recipeToEdit] = newRecipe;
-            return recipeName;
-        } else {
+    public synchronized String editRecipe(int recipeToEdit, Recipe newRecipe) {
+        if (!isUsed(recipeToEdit)) {
             return null;
         }
+        Menu current = menu;
+        String recipeName = current.recipeArray[recipeToEdit].getName();
+        Recipe[] recipes = current.recipeArray.clone();
+        recipes[recipeToEdit] = newRecipe.frozenCopy(recipeName);
+        menu = new Menu(recipes, current.version + 1);
+        return recipeName;
+    }
+
+    /**
+     * Puts the recipe in the given slot, growing the book if needed.
+     * Used to restore a saved recipe book; the slot must be empty.
+     */
+    synchronized void restoreRecipe(int slot, Recipe r) {
+        Menu current = menu;
+        int length = current.recipeArray.length;
+        while (length <= slot) {
+            length *= 2;
+        }
+        Recipe[] recipes = Arrays.copyOf(current.recipeArray, length);
+        recipes[slot] = r.frozenCopy(r.getName());
+        usedSlots.set(slot);
+        slotsByName.put(r.getName(), slot);
+        menu = new Menu(recipes, current.version + 1);
+    }
+
+    private boolean isUsed(int slot) {
+        return slot >= 0 && usedSlots.get(slot);
     }
 
 }
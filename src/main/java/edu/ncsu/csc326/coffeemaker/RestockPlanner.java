@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recommends restocks before an {@link Inventory} runs out, from the
+ * recent rate of use reported by its {@link ConsumptionTracker}.
+ *
+ * The planner is given the lead time a restock takes to arrive and how
+ * long the stock should last after that.  Any ingredient whose stock will
+ * not last for both is recommended for a restock that brings it up to
+ * that level; it is urgent if it will run out before a restock can even
+ * arrive.
+ */
+public final class RestockPlanner {
+
+    /**
+     * One ingredient that needs restocking.
+     */
+    public static final class Recommendation {
+        private final int ingredient;
+        private final String name;
+        private final int units;
+        private final double rate;
+        private final double secondsToEmpty;
+        private final int amount;
+        private final boolean urgent;
+
+        Recommendation(int ingredient, String name, int units, double rate, double secondsToEmpty,
+                int amount, boolean urgent) {
+            this.ingredient = ingredient;
+            this.name = name;
+            this.units = units;
+            this.rate = rate;
+            this.secondsToEmpty = secondsToEmpty;
+            this.amount = amount;
+            this.urgent = urgent;
+        }
+
+        /**
+         * @return   Returns the ingredient index.
+         */
+        public int getIngredient() {
+            return ingredient;
+        }
+
+        /**
+         * @return   Returns the ingredient name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return   Returns the units in stock.
+         */
+        public int getUnits() {
+            return units;
+        }
+
+        /**
+         * @return   Returns the rate of use in units per second.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * @return   Returns the seconds until the stock runs out.
+         */
+        public double getSecondsToEmpty() {
+            return secondsToEmpty;
+        }
+
+        /**
+         * @return   Returns the units to add.
+         */
+        public int getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return   Returns true if the stock runs out before a restock
+         * can arrive.
+         */
+        public boolean isUrgent() {
+            return urgent;
+        }
+
+        /**
+         * Returns a description of the recommendation.
+         * @return String
+         */
+        public String toString() {
+            return (urgent ? "URGENT: add " : "Add ") + amount + " " + name.toLowerCase()
+                    + " (" + units + " left, empty in " + Math.round(secondsToEmpty) + "s)";
+        }
+    }
+
+    private static final Comparator<Recommendation> SOONEST_EMPTY =
+            Comparator.comparingDouble(Recommendation::getSecondsToEmpty);
+
+    private final Inventory inventory;
+    private final double leadSeconds;
+    private final double coverSeconds;
+
+    /**
+     * Creates a planner for the given inventory.
+     * @param inventory
+     * @param leadTime how long a restock takes to arrive
+     * @param cover how long the stock should last once it arrives
+     * @param unit unit of the two times
+     */
+    public RestockPlanner(Inventory inventory, long leadTime, long cover, TimeUnit unit) {
+        this.inventory = inventory;
+        this.leadSeconds = unit.toNanos(leadTime) / 1e9;
+        this.coverSeconds = unit.toNanos(cover) / 1e9;
+    }
+
+    /**
+     * Returns the restocks needed now, the ingredient that runs out
+     * first listed first.  The list is empty if every ingredient will
+     * last.
+     * @return List of Recommendation
+     */
+    public List<Recommendation> plan() {
+        InventorySnapshot stock = inventory.snapshot();
+        ConsumptionTracker consumption = inventory.getConsumption();
+        Ingredients ingredients = stock.getIngredients();
+        double horizon = leadSeconds + coverSeconds;
+        List<Recommendation> plan = new ArrayList<Recommendation>();
+        for (int i = 0; i < ingredients.size(); i++) {
+            int units = stock.getUnits(i);
+            double rate = consumption.getRate(i);
+            double secondsToEmpty = consumption.getSecondsToEmpty(i, units);
+            if (secondsToEmpty < horizon) {
+                long needed = (long) Math.ceil(rate * horizon) - units;
+                int amount = (int) Math.min(Integer.MAX_VALUE, Math.max(1, needed));
+                plan.add(new Recommendation(i, ingredients.getName(i), units, rate, secondsToEmpty,
+                        amount, secondsToEmpty < leadSeconds));
+            }
+        }
+        Collections.sort(plan, SOONEST_EMPTY);
+        return plan;
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Record of the coffee maker's sales.
+ *
+ * The latest sales are kept in a ring buffer with one array per column
+ * (time, recipe slot, price and change).  Alongside it the ledger keeps
+ * the revenue, the units sold of every recipe and the
+ * {@value #TOP_SELLERS} best sellers over the last minute, hour and day.
+ * Each {@link Window} is divided into buckets; a sale is added to the
+ * bucket of its time and to the window's running totals, and when a
+ * bucket falls out of the window its contents are subtracted again.
+ * Sales can reach the totals slightly out of time order, so a sale may
+ * go to a bucket before the newest one, and a sale already older than
+ * the window is left out of it.  Queries read the running totals, so
+ * they take the same time however many sales there were.  A window
+ * covers its span to within one bucket.
+ *
+ * Recording a sale never blocks and allocates nothing: the sale claims
+ * a position in the ring with one atomic increment and is published
+ * there, and whichever thread gets the ledger's lock without waiting
+ * adds every published sale to the totals.  A query takes the lock and
+ * adds whatever is still pending first.  Only a sale that would
+ * overwrite one not yet added waits for the lock.  The totals' arrays
+ * only grow when a sale comes from a recipe slot beyond every slot seen
+ * before.
+ */
+public class SalesLedger {
+
+    /**
+     * Rolling windows the ledger keeps totals for.
+     */
+    public enum Window {
+        /**
+         * The last minute, in one-second buckets
+         */
+        MINUTE(TimeUnit.SECONDS.toMillis(1), 60),
+        /**
+         * The last hour, in one-minute buckets
+         */
+        HOUR(TimeUnit.MINUTES.toMillis(1), 60),
+        /**
+         * The last day, in fifteen-minute buckets
+         */
+        DAY(TimeUnit.MINUTES.toMillis(15), 96);
+
+        final long bucketMillis;
+        final int buckets;
+
+        Window(long bucketMillis, int buckets) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = buckets;
+        }
+
+        /**
+         * Returns the length of the window.
+         *
+         * @param unit
+         * @return long
+         */
+        public long getSpan(TimeUnit unit) {
+            return unit.convert(bucketMillis * buckets, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Number of best sellers kept for each window
+     */
+    public static final int TOP_SELLERS = 5;
+
+    private static final Window[] WINDOWS = Window.values();
+    private static final int INITIAL_SLOTS = 8;
+
+    /**
+     * Totals of one window: a bucket per slice of time plus the running
+     * sums of the buckets still inside the window.
+     */
+    private static final class Rolling {
+        final long bucketMillis;
+        final long[] bucketRevenue;
+        final long[] bucketSales;
+        long[][] bucketUnits;
+        long revenue;
+        long sales;
+        long[] units;
+        /**
+         * Slots of the best sellers, most units first; the first
+         * topCount are in use
+         */
+        final int[] top = new int[TOP_SELLERS];
+        int topCount;
+        /**
+         * Number of the newest bucket, counted from the epoch
+         */
+        long current = Long.MIN_VALUE;
+        /**
+         * Index of the newest bucket and the time the next one starts
+         */
+        int currentIndex;
+        long currentEnd = Long.MIN_VALUE;
+
+        Rolling(Window window) {
+            this.bucketMillis = window.bucketMillis;
+            this.bucketRevenue = new long[window.buckets];
+            this.bucketSales = new long[window.buckets];
+            this.bucketUnits = new long[window.buckets][INITIAL_SLOTS];
+            this.units = new long[INITIAL_SLOTS];
+        }
+
+        /**
+         * Moves the window forward to the given time, dropping the
+         * buckets that fall out of it.
+         */
+        void advance(long time) {
+            if (time < currentEnd) {
+                return;
+            }
+            long bucket = Math.floorDiv(time, bucketMillis);
+            int buckets = bucketSales.length;
+            long from = current == Long.MIN_VALUE ? bucket : Math.max(current + 1, bucket - buckets + 1);
+            boolean dropped = false;
+            for (long b = from; b <= bucket; b++) {
+                int i = (int) Math.floorMod(b, (long) buckets);
+                if (bucketSales[i] != 0) {
+                    revenue -= bucketRevenue[i];
+                    sales -= bucketSales[i];
+                    long[] dropping = bucketUnits[i];
+                    for (int slot = 0; slot < dropping.length; slot++) {
+                        units[slot] -= dropping[slot];
+                    }
+                    Arrays.fill(dropping, 0);
+                    bucketRevenue[i] = 0;
+                    bucketSales[i] = 0;
+                    dropped = true;
+                }
+            }
+            current = bucket;
+            currentIndex = (int) Math.floorMod(bucket, (long) buckets);
+            currentEnd = (bucket + 1) * bucketMillis;
+            if (dropped) {
+                topCount = 0;
+                for (int slot = 0; slot < units.length; slot++) {
+                    if (units[slot] > 0) {
+                        promote(slot);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a sale made at the given time, which is no later than the
+         * time the window was last advanced to, to the bucket it belongs
+         * to.  A sale older than every bucket in the window is ignored.
+         */
+        void add(int slot, int price, long time) {
+            long bucket = Math.floorDiv(time, bucketMillis);
+            if (bucket <= current - bucketSales.length) {
+                return;
+            }
+            if (slot >= units.length) {
+                int length = Math.max(slot + 1, units.length * 2);
+                units = Arrays.copyOf(units, length);
+                for (int i = 0; i < bucketUnits.length; i++) {
+                    bucketUnits[i] = Arrays.copyOf(bucketUnits[i], length);
+                }
+            }
+            int i = bucket >= current ? currentIndex : (int) Math.floorMod(bucket, (long) bucketSales.length);
+            bucketRevenue[i] += price;
+            bucketSales[i]++;
+            bucketUnits[i][slot]++;
+            revenue += price;
+            sales++;
+            units[slot]++;
+            promote(slot);
+        }
+
+        /**
+         * Moves the slot up the best sellers after its units went up,
+         * entering it if it now sold more than the last of them.
+         */
+        void promote(int slot) {
+            int pos = 0;
+            while (pos < topCount && top[pos] != slot) {
+                pos++;
+            }
+            if (pos == topCount) {
+                if (topCount < top.length) {
+                    topCount++;
+                } else if (units[slot] > units[top[--pos]]) {
+                    top[pos] = slot;
+                } else {
+                    return;
+                }
+            }
+            while (pos > 0 && units[top[pos - 1]] < units[slot]) {
+                top[pos] = top[pos - 1];
+                pos--;
+            }
+            top[pos] = slot;
+        }
+    }
+
+    /**
+     * Monotonic clock in nanoseconds, and the wall-clock time and clock
+     * reading the ledger was created at; sale times are measured from
+     * them, so they never go backwards
+     */
+    private final LongSupplier clock;
+    private final long originMillis;
+    private final long originNanos;
+    private final int mask;
+    private final AtomicLongArray times;
+    private final AtomicIntegerArray slots;
+    private final AtomicIntegerArray prices;
+    private final AtomicIntegerArray changes;
+    /**
+     * Position each slot of the ring was last published for, plus one,
+     * or -1 while a sale is being written into it
+     */
+    private final AtomicLongArray published;
+    /**
+     * Next position to claim
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Position of the first sale not yet added to the totals; only
+     * written with the lock held
+     */
+    private volatile long folded;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Rolling[] rolling = new Rolling[WINDOWS.length];
+
+    /**
+     * Creates a ledger that keeps the given number of latest sales,
+     * rounded up to a power of two, and totals for every window.
+     *
+     * @param capacity
+     */
+    public SalesLedger(int capacity) {
+        this(capacity, System::nanoTime, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a ledger that reads the time from the given clock in
+     * nanoseconds, whose current reading is the given time in
+     * milliseconds since the epoch.
+     */
+    SalesLedger(int capacity, LongSupplier clock, long originMillis) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.clock = clock;
+        this.originMillis = originMillis;
+        this.originNanos = clock.getAsLong();
+        this.mask = size - 1;
+        this.times = new AtomicLongArray(size);
+        this.slots = new AtomicIntegerArray(size);
+        this.prices = new AtomicIntegerArray(size);
+        this.changes = new AtomicIntegerArray(size);
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < rolling.length; i++) {
+            rolling[i] = new Rolling(WINDOWS[i]);
+        }
+    }
+
+    /**
+     * Records a sale of the recipe in the given slot.
+     *
+     * @param slot
+     * @param price
+     * @param change
+     */
+    public void record(int slot, int price, int change) {
+        record(slot, price, change, clock.getAsLong());
+    }
+
+    /**
+     * Records a sale made at the given reading of the ledger's clock,
+     * for callers that have just read it.
+     */
+    void record(int slot, int price, int change, long nanos) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("Sales must be of a recipe slot");
+        }
+        long now = toMillis(nanos);
+        long pos = tail.getAndIncrement();
+        while (pos - folded > mask) {
+            combine(true);
+            Thread.yield();
+        }
+        int i = (int) pos & mask;
+        published.lazySet(i, -1);
+        times.lazySet(i, now);
+        slots.lazySet(i, slot);
+        prices.lazySet(i, price);
+        changes.lazySet(i, change);
+        published.lazySet(i, pos + 1);
+        combine(false);
+    }
+
+    /**
+     * Returns the number of sales ever recorded.
+     *
+     * @return long
+     */
+    public long getCount() {
+        lock.lock();
+        try {
+            fold();
+            return folded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the revenue of the sales in the window.
+     *
+     * @param window
+     * @return long
+     */
+    public long getRevenue(Window window) {
+        lock.lock();
+        try {
+            return current(window).revenue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of beverages sold in the window.
+     *
+     * @param window
+     * @return long
+     */
+    public long getSales(Window window) {
+        lock.lock();
+        try {
+            return current(window).sales;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of beverages of the recipe in the given slot
+     * sold in the window.
+     *
+     * @param window
+     * @param slot
+     * @return long
+     */
+    public long getSales(Window window, int slot) {
+        lock.lock();
+        try {
+            Rolling totals = current(window);
+            return slot >= 0 && slot < totals.units.length ? totals.units[slot] : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot of the recipe that sold the most in the window,
+     * or -1 if nothing was sold.  Of recipes that sold equally well,
+     * either may be returned.
+     *
+     * @param window
+     * @return int
+     */
+    public int getTopSeller(Window window) {
+        lock.lock();
+        try {
+            Rolling totals = current(window);
+            return totals.topCount > 0 ? totals.top[0] : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the slots of the best-selling recipes in the window into
+     * the array, most sold first, and returns how many were copied: at
+     * most dest.length and {@link #TOP_SELLERS}, and only recipes that
+     * sold in the window.  Of recipes that sold equally well, either
+     * may come first.
+     *
+     * @param window
+     * @param dest
+     * @return int
+     */
+    public int getTopSellers(Window window, int[] dest) {
+        lock.lock();
+        try {
+            Rolling totals = current(window);
+            int n = Math.min(dest.length, totals.topCount);
+            System.arraycopy(totals.top, 0, dest, 0, n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies up to slots.length of the latest sales' recipe slots into
+     * the array, newest first, and the matching times, prices and
+     * changes into the other arrays if they are not null.  Returns the
+     * number copied, which is at most the ledger's capacity; sales being
+     * written or overwritten while they are copied are left out.
+     *
+     * @param times
+     * @param slots
+     * @param prices
+     * @param changes
+     * @return int
+     */
+    public int copyLatest(long[] times, int[] slots, int[] prices, int[] changes) {
+        int n = 0;
+        long end = tail.get();
+        for (long pos = end - 1; pos >= 0 && pos >= end - mask - 1 && n < slots.length; pos--) {
+            int i = (int) pos & mask;
+            if (published.get(i) != pos + 1) {
+                continue;
+            }
+            long time = this.times.get(i);
+            int slot = this.slots.get(i);
+            int price = this.prices.get(i);
+            int change = this.changes.get(i);
+            if (published.get(i) != pos + 1) {
+                continue;
+            }
+            slots[n] = slot;
+            if (times != null) {
+                times[n] = time;
+            }
+            if (prices != null) {
+                prices[n] = price;
+            }
+            if (changes != null) {
+                changes[n] = change;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds the published sales to the totals if the lock can be had, or
+     * waits for it if asked to, and goes again if more sales were
+     * published while it held the lock.
+     */
+    private void combine(boolean wait) {
+        do {
+            if (wait) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                fold();
+            } finally {
+                lock.unlock();
+            }
+            wait = false;
+        } while (published.get((int) folded & mask) == folded + 1);
+    }
+
+    /**
+     * Adds every sale published in order since the last fold to the
+     * totals.  Called with the lock held.
+     */
+    private void fold() {
+        long next = folded;
+        int i;
+        while (published.get(i = (int) next & mask) == next + 1) {
+            long time = times.get(i);
+            int slot = slots.get(i);
+            int price = prices.get(i);
+            for (Rolling window : rolling) {
+                window.advance(time);
+                window.add(slot, price, time);
+            }
+            next++;
+        }
+        folded = next;
+    }
+
+    private Rolling current(Window window) {
+        fold();
+        Rolling totals = rolling[window.ordinal()];
+        totals.advance(toMillis(clock.getAsLong()));
+        return totals;
+    }
+
+    private long toMillis(long nanos) {
+        return originMillis + (nanos - originNanos) / 1000000;
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many of each recipe one {@link InventorySnapshot} can make, for
+ * one menu.  The maximum servings of each recipe on its own are worked
+ * out when the object is created; the best mix for a given demand is
+ * solved on request and kept until a different demand is asked for.
+ * Like the menu and the snapshot it is computed from, a Servings object
+ * never changes, so the coffee maker caches it until either does.
+ */
+public final class Servings {
+
+    /**
+     * Search nodes explored before the best mix found so far is returned
+     * without proof that it is optimal
+     */
+    static final int NODE_LIMIT = 100000;
+    /**
+     * Time the search may take, in milliseconds, before the best mix
+     * found so far is returned without proof that it is optimal
+     */
+    static final long TIME_LIMIT_MILLIS = 50;
+
+    /**
+     * A number of servings of each recipe that the stock can make
+     * together.
+     */
+    public static final class Mix {
+        private final int[] demand;
+        private final int[] servings;
+        private final long revenue;
+        private final long bound;
+
+        Mix(int[] demand, int[] servings, long revenue, long bound) {
+            this.demand = demand;
+            this.servings = servings;
+            this.revenue = revenue;
+            this.bound = Math.max(revenue, bound);
+        }
+
+        /**
+         * Returns the servings of the recipe in the given slot.
+         * @param slot
+         * @return int
+         */
+        public int getServings(int slot) {
+            return slot >= 0 && slot < servings.length ? servings[slot] : 0;
+        }
+
+        /**
+         * Returns the total price of every serving in the mix.
+         * @return long
+         */
+        public long getRevenue() {
+            return revenue;
+        }
+
+        /**
+         * Returns true if no other mix within the demand earns more;
+         * false if the search was cut short.
+         * @return boolean
+         */
+        public boolean isOptimal() {
+            return bound == revenue;
+        }
+
+        /**
+         * Returns a revenue that no mix within the demand can exceed;
+         * equal to the revenue of this mix if it is optimal.
+         * @return long
+         */
+        public long getBound() {
+            return bound;
+        }
+    }
+
+    private final Recipe[] menu;
+    private final InventorySnapshot stock;
+    private final int[] maxServings;
+    private volatile Mix lastMix;
+
+    private Servings(Recipe[] menu, InventorySnapshot stock) {
+        this.menu = menu;
+        this.stock = stock;
+        this.maxServings = new int[menu.length];
+        for (int slot = 0; slot < menu.length; slot++) {
+            if (menu[slot] != null) {
+                maxServings[slot] = maxServings(menu[slot].compile(), stock.units);
+            }
+        }
+    }
+
+    /**
+     * Returns the servings of the given recipes the given stock can
+     * make.
+     */
+    static Servings of(Recipe[] menu, InventorySnapshot stock) {
+        return new Servings(menu, stock);
+    }
+
+    /**
+     * Returns true if these servings are for the given menu and stock.
+     */
+    boolean isOf(Recipe[] menu, InventorySnapshot stock) {
+        return this.menu == menu && this.stock == stock;
+    }
+
+    /**
+     * Returns the inventory version the servings were computed at.
+     * @return long
+     */
+    public long getInventoryVersion() {
+        return stock.getVersion();
+    }
+
+    /**
+     * Returns how many of the recipe in the given slot the stock can
+     * make if nothing else is made, 0 for an empty slot, and
+     * Integer.MAX_VALUE for a recipe that uses no ingredients.
+     * @param slot
+     * @return int
+     */
+    public int getMaxServings(int slot) {
+        return slot >= 0 && slot < maxServings.length ? maxServings[slot] : 0;
+    }
+
+    /**
+     * Returns the mix of servings, at most the demand of each recipe,
+     * that the stock can make together and that earns the most.  The
+     * demand is indexed by recipe slot.  The mix is found by a
+     * depth-first branch and bound on the linear relaxation, starting
+     * from the relaxed optimum rounded down and filled up greedily, and
+     * pruning a branch when its relaxation cannot beat the best mix so
+     * far.  On a large menu the search may stop after
+     * {@link #NODE_LIMIT} nodes or {@link #TIME_LIMIT_MILLIS}
+     * milliseconds; the mix then reports that it is not known to be
+     * optimal, and how far off it could be.
+     * @param demand wanted servings of each recipe slot
+     * @return Mix
+     */
+    public Mix getBestMix(int[] demand) {
+        Mix mix = lastMix;
+        if (mix != null && Arrays.equals(mix.demand, demand)) {
+            return mix;
+        }
+        mix = new Solver(demand.clone()).solve();
+        lastMix = mix;
+        return mix;
+    }
+
+    /**
+     * Returns the servings of each recipe slot in the optimum of the
+     * linear relaxation for the given demand, which may be fractional,
+     * or null if the relaxation did not converge.
+     */
+    double[] getRelaxedMix(int[] demand) {
+        return new Solver(demand.clone()).relaxed();
+    }
+
+    private static int maxServings(CompiledRecipe r, int[] units) {
+        if (r.size() > units.length) {
+            return 0;
+        }
+        int max = Integer.MAX_VALUE;
+        for (int i = 0; i < r.size(); i++) {
+            if (r.getAmount(i) > 0) {
+                max = Math.min(max, Math.max(0, units[i]) / r.getAmount(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Search state for one demand: a branch and bound on the linear
+     * relaxation.  Candidates are the recipes with demand that can be
+     * made at all.  Each node solves the relaxation within its bounds on
+     * the servings of each candidate with a bounded-variable simplex,
+     * which has one row per ingredient, and branches on a fractional
+     * serving.
+     *
+     * The relaxed optimum has at most one fractional serving per
+     * ingredient, so rounding it down loses little.  Every node rounds
+     * its relaxed mix down and fills the stock left greedily, best
+     * price per priced unit of stock first; at the root that gives the
+     * first incumbent.
+     */
+    private final class Solver {
+        private static final double EPS = 1e-9;
+        private static final double INTEGRAL = 1e-6;
+
+        private final int[] demand;
+        private final int n;
+        private final int m;
+        private final int[] slots;
+        private final int[][] needs;
+        private final long[] prices;
+        private final int[] limits;
+        /**
+         * Bounds on the servings of each candidate at the current node
+         */
+        private final int[] lower;
+        private final int[] upper;
+        /**
+         * Candidates in the order the greedy filling tries them
+         */
+        private int[] fillOrder;
+        private final long deadline;
+        private long nodes;
+        /**
+         * Set once a node was given up on, so the search is not
+         * exhaustive
+         */
+        private boolean cutOff;
+        private long best;
+        private final int[] bestCounts;
+        private final int[] counts;
+        private final int[] left;
+
+        Solver(int[] demand) {
+            this.demand = demand;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_LIMIT_MILLIS);
+            m = stock.units.length;
+            int[] candidates = new int[Math.min(demand.length, menu.length)];
+            int n = 0;
+            for (int slot = 0; slot < candidates.length; slot++) {
+                if (demand[slot] > 0 && maxServings[slot] > 0) {
+                    candidates[n++] = slot;
+                }
+            }
+            this.n = n;
+            slots = Arrays.copyOf(candidates, n);
+            needs = new int[n][m];
+            prices = new long[n];
+            limits = new int[n];
+            for (int k = 0; k < n; k++) {
+                CompiledRecipe r = menu[slots[k]].compile();
+                prices[k] = r.getPrice();
+                limits[k] = Math.min(demand[slots[k]], maxServings[slots[k]]);
+                for (int i = 0; i < m; i++) {
+                    needs[k][i] = r.getAmount(i);
+                }
+            }
+            lower = new int[n];
+            upper = limits.clone();
+            bestCounts = new int[n];
+            counts = new int[n];
+            left = new int[m];
+        }
+
+        Mix solve() {
+            double[] x = new double[n];
+            double[] duals = new double[m];
+            double root = relax(x, duals, false);
+            long bound;
+            if (Double.isNaN(root)) {
+                // the relaxation did not converge: fall back to the demand itself
+                duals = null;
+                bound = 0;
+                for (int k = 0; k < n; k++) {
+                    bound += prices[k] * limits[k];
+                }
+                cutOff = true;
+            } else {
+                bound = floor(root);
+            }
+            fillOrder = fillOrder(duals);
+            round(x);
+            if (!cutOff && best < bound) {
+                branch(x);
+            }
+            int[] servings = new int[menu.length];
+            for (int k = 0; k < n; k++) {
+                servings[slots[k]] = bestCounts[k];
+            }
+            return new Mix(demand, servings, best, cutOff ? bound : best);
+        }
+
+        double[] relaxed() {
+            double[] x = new double[n];
+            if (Double.isNaN(relax(x, null, false))) {
+                return null;
+            }
+            double[] servings = new double[menu.length];
+            for (int k = 0; k < n; k++) {
+                servings[slots[k]] = x[k];
+            }
+            return servings;
+        }
+
+        /**
+         * Searches below the node whose relaxed mix is given, branching
+         * on its most fractional serving: first on at least the next
+         * whole serving, then on at most the one below.
+         */
+        private void branch(double[] x) {
+            int split = -1;
+            double fraction = 0;
+            for (int k = 0; k < n; k++) {
+                double f = x[k] - Math.floor(x[k]);
+                double distance = Math.min(f, 1 - f);
+                if (distance > INTEGRAL && distance > fraction) {
+                    split = k;
+                    fraction = distance;
+                }
+            }
+            if (split < 0) {
+                return;
+            }
+            int floor = (int) Math.floor(x[split]);
+            int saved = lower[split];
+            lower[split] = floor + 1;
+            node();
+            lower[split] = saved;
+            if (cutOff) {
+                return;
+            }
+            saved = upper[split];
+            upper[split] = floor;
+            node();
+            upper[split] = saved;
+        }
+
+        private void node() {
+            if (++nodes > NODE_LIMIT || System.nanoTime() > deadline) {
+                cutOff = true;
+                return;
+            }
+            double[] x = new double[n];
+            double value = relax(x, null, true);
+            if (Double.isNaN(value)) {
+                cutOff = true;
+                return;
+            }
+            if (value < 0 || floor(value) <= best) {
+                return;
+            }
+            round(x);
+            if (floor(value) > best) {
+                branch(x);
+            }
+        }
+
+        /**
+         * Rounds the relaxed mix down, fills the stock left greedily
+         * within the demand, and keeps the result if it beats the best
+         * mix so far.
+         */
+        private void round(double[] x) {
+            System.arraycopy(stock.units, 0, left, 0, m);
+            long value = 0;
+            for (int k = 0; k < n; k++) {
+                counts[k] = Math.min(limits[k], (int) Math.floor(x[k] + INTEGRAL));
+                value += prices[k] * counts[k];
+                for (int i = 0; i < m; i++) {
+                    left[i] -= needs[k][i] * counts[k];
+                }
+            }
+            for (int i = 0; i < m; i++) {
+                if (left[i] < 0) {
+                    return;
+                }
+            }
+            for (int k : fillOrder) {
+                int more = limits[k] - counts[k];
+                for (int i = 0; i < m && more > 0; i++) {
+                    if (needs[k][i] > 0) {
+                        more = Math.min(more, left[i] / needs[k][i]);
+                    }
+                }
+                if (more > 0) {
+                    counts[k] += more;
+                    value += prices[k] * more;
+                    for (int i = 0; i < m; i++) {
+                        left[i] -= needs[k][i] * more;
+                    }
+                }
+            }
+            if (value > best) {
+                best = value;
+                System.arraycopy(counts, 0, bestCounts, 0, n);
+            }
+        }
+
+        /**
+         * Returns the candidates in order of falling price per unit of
+         * stock, each ingredient priced by its dual value, or weighted by
+         * how little of it there is if there are no duals.
+         */
+        private int[] fillOrder(double[] duals) {
+            final double[] ratio = new double[n];
+            Integer[] order = new Integer[n];
+            for (int k = 0; k < n; k++) {
+                double use = 0;
+                for (int i = 0; i < m; i++) {
+                    double weight = duals != null ? duals[i] : 1.0 / Math.max(1, stock.units[i]);
+                    use += weight * needs[k][i];
+                }
+                order[k] = k;
+                ratio[k] = use > EPS ? prices[k] / use : Double.POSITIVE_INFINITY;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(ratio[b], ratio[a]));
+            int[] sorted = new int[n];
+            for (int k = 0; k < n; k++) {
+                sorted[k] = order[k];
+            }
+            return sorted;
+        }
+
+        /**
+         * Solves the relaxation at the current node: the most revenue
+         * with fractional servings between each candidate's bounds, one
+         * constraint per ingredient.  The bounds are shifted so every
+         * lower bound is zero; all needs are non-negative, so the
+         * all-lower mix with slack stock is a feasible start, and if it
+         * does not fit neither does anything else.  Fills in the relaxed
+         * servings, and the dual price of each ingredient if asked to,
+         * and returns the revenue, -1 if the node is infeasible, or NaN
+         * if the simplex ran out of iterations or, when timed, of time.
+         */
+        private double relax(double[] x, double[] duals, boolean timed) {
+            double[] rhs = new double[m];
+            for (int i = 0; i < m; i++) {
+                long free = stock.units[i];
+                for (int k = 0; k < n; k++) {
+                    free -= (long) needs[k][i] * lower[k];
+                }
+                if (free < 0) {
+                    return -1;
+                }
+                rhs[i] = free;
+            }
+            // variables 0..n-1 are servings above the lower bound, n..n+m-1 the stock left unused
+            int[] basis = new int[m];
+            int[] row = new int[n + m];
+            Arrays.fill(row, -1);
+            double[][] inverse = new double[m][m];
+            double[] xB = rhs.clone();
+            for (int i = 0; i < m; i++) {
+                basis[i] = n + i;
+                row[n + i] = i;
+                inverse[i][i] = 1;
+            }
+            boolean[] atUpper = new boolean[n];
+            double[] y = new double[m];
+            double[] alpha = new double[m];
+            int stalled = 0;
+            int maxIterations = 50 * (n + m) + 1000;
+            for (int iteration = 0; ; iteration++) {
+                if (iteration == maxIterations
+                        || timed && (iteration & 63) == 63 && System.nanoTime() > deadline) {
+                    return Double.NaN;
+                }
+                for (int i = 0; i < m; i++) {
+                    double sum = 0;
+                    for (int r = 0; r < m; r++) {
+                        if (basis[r] < n) {
+                            sum += prices[basis[r]] * inverse[r][i];
+                        }
+                    }
+                    y[i] = sum;
+                }
+                // Dantzig pricing, or the first improving variable (Bland) once progress stalls
+                boolean bland = stalled > 50;
+                int entering = -1;
+                int direction = 0;
+                double score = EPS;
+                for (int k = 0; k < n && !(bland && entering >= 0); k++) {
+                    if (row[k] >= 0 || lower[k] == upper[k]) {
+                        continue;
+                    }
+                    double reduced = prices[k];
+                    for (int i = 0; i < m; i++) {
+                        reduced -= y[i] * needs[k][i];
+                    }
+                    double gain = atUpper[k] ? -reduced : reduced;
+                    if (gain > score) {
+                        entering = k;
+                        direction = atUpper[k] ? -1 : 1;
+                        score = gain;
+                    }
+                }
+                for (int i = 0; i < m && !(bland && entering >= 0); i++) {
+                    if (row[n + i] < 0 && -y[i] > score) {
+                        entering = n + i;
+                        direction = 1;
+                        score = -y[i];
+                    }
+                }
+                if (entering < 0) {
+                    break;
+                }
+                for (int r = 0; r < m; r++) {
+                    alpha[r] = entering < n ? dotColumn(inverse[r], entering) : inverse[r][entering - n];
+                }
+                double step = entering < n ? upper[entering] - lower[entering] : Double.POSITIVE_INFINITY;
+                int leaving = -1;
+                boolean leavesAtUpper = false;
+                for (int r = 0; r < m; r++) {
+                    double a = direction * alpha[r];
+                    if (a > EPS) {
+                        double limit = Math.max(0, xB[r]) / a;
+                        if (limit < step) {
+                            step = limit;
+                            leaving = r;
+                            leavesAtUpper = false;
+                        }
+                    } else if (a < -EPS && basis[r] < n) {
+                        int k = basis[r];
+                        double limit = Math.max(0, upper[k] - lower[k] - xB[r]) / -a;
+                        if (limit < step) {
+                            step = limit;
+                            leaving = r;
+                            leavesAtUpper = true;
+                        }
+                    }
+                }
+                if (step == Double.POSITIVE_INFINITY) {
+                    return Double.NaN;
+                }
+                for (int r = 0; r < m; r++) {
+                    xB[r] -= direction * step * alpha[r];
+                }
+                stalled = step < EPS ? stalled + 1 : 0;
+                if (leaving < 0) {
+                    atUpper[entering] = !atUpper[entering];
+                    continue;
+                }
+                double enteringValue = direction > 0 ? step : upper[entering] - lower[entering] - step;
+                int out = basis[leaving];
+                row[out] = -1;
+                if (out < n) {
+                    atUpper[out] = leavesAtUpper;
+                }
+                double pivot = alpha[leaving];
+                for (int c = 0; c < m; c++) {
+                    inverse[leaving][c] /= pivot;
+                }
+                for (int r = 0; r < m; r++) {
+                    if (r != leaving && alpha[r] != 0) {
+                        double factor = alpha[r];
+                        for (int c = 0; c < m; c++) {
+                            inverse[r][c] -= factor * inverse[leaving][c];
+                        }
+                    }
+                }
+                xB[leaving] = enteringValue;
+                basis[leaving] = entering;
+                row[entering] = leaving;
+                if (entering < n) {
+                    atUpper[entering] = false;
+                }
+            }
+            // recompute the basic values from the bounds to shed rounding drift
+            for (int k = 0; k < n; k++) {
+                if (row[k] < 0 && atUpper[k]) {
+                    for (int i = 0; i < m; i++) {
+                        rhs[i] -= (double) needs[k][i] * (upper[k] - lower[k]);
+                    }
+                }
+            }
+            double value = 0;
+            for (int k = 0; k < n; k++) {
+                double above;
+                if (row[k] >= 0) {
+                    above = 0;
+                    for (int c = 0; c < m; c++) {
+                        above += inverse[row[k]][c] * rhs[c];
+                    }
+                    above = Math.max(0, Math.min(upper[k] - lower[k], above));
+                } else {
+                    above = atUpper[k] ? upper[k] - lower[k] : 0;
+                }
+                x[k] = lower[k] + above;
+                value += prices[k] * x[k];
+            }
+            if (duals != null) {
+                System.arraycopy(y, 0, duals, 0, m);
+            }
+            return value;
+        }
+
+        private double dotColumn(double[] inverseRow, int k) {
+            double sum = 0;
+            for (int i = 0; i < m; i++) {
+                sum += inverseRow[i] * needs[k][i];
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the most whole revenue a relaxed revenue allows, with
+         * room for rounding error.
+         */
+        private long floor(double value) {
+            return (long) Math.floor(value + INTEGRAL * Math.max(1, value));
+        }
+    }
+}
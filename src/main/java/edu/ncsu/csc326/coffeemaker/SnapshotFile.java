@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
+
+/**
+ * Compact binary snapshot of a recipe book and inventory, tagged with the
+ * {@link TransactionLog} LSN it reflects.  Snapshots are written and read
+ * through memory-mapped files; on start, load the snapshot and replay
+ * only the log records after its LSN.
+ *
+ * Layout: magic, format version, LSN, the units of each ingredient, the
+ * number of recipe slots, then each recipe as slot, name, price and
+ * amounts, and finally a CRC32 of everything before it.  A snapshot is
+ * written to a temporary file and renamed into place, so a crash leaves
+ * either the old snapshot or the new one.
+ */
+public final class SnapshotFile {
+
+    private static final int MAGIC = 0x434d534e;
+    private static final int FORMAT = 1;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a snapshot of the given recipe book and inventory, which
+     * reflect every log record up to the given LSN.
+     *
+     * @param file
+     * @param recipeBook
+     * @param inventory
+     * @param lsn
+     * @throws IOException
+     */
+    public static void write(Path file, RecipeBook recipeBook, Inventory inventory, long lsn) throws IOException {
+        Recipe[] recipes = recipeBook.getRecipes();
+        InventorySnapshot stock = inventory.snapshot();
+        int ingredients = stock.getIngredients().size();
+
+        byte[][] names = new byte[recipes.length][];
+        int recipeCount = 0;
+        long size = 4 + 4 + 8 + 4 + 4L * ingredients + 4 + 4;
+        for (int i = 0; i < recipes.length; i++) {
+            if (recipes[i] != null) {
+                names[i] = recipes[i].getName().getBytes(StandardCharsets.UTF_8);
+                size += 4 + 4 + names[i].length + 4 + 4 + 4L * recipes[i].compile().size();
+                recipeCount++;
+            }
+        }
+        size += 4;
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC).putInt(FORMAT).putLong(lsn);
+            buf.putInt(ingredients);
+            for (int i = 0; i < ingredients; i++) {
+                buf.putInt(stock.getUnits(i));
+            }
+            buf.putInt(recipes.length).putInt(recipeCount);
+            for (int i = 0; i < recipes.length; i++) {
+                if (recipes[i] != null) {
+                    CompiledRecipe r = recipes[i].compile();
+                    buf.putInt(i).putInt(names[i].length).put(names[i]).putInt(r.getPrice());
+                    buf.putInt(r.size());
+                    for (int j = 0; j < r.size(); j++) {
+                        buf.putInt(r.getAmount(j));
+                    }
+                }
+            }
+            buf.putInt(checksum(buf, buf.position()));
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot into the given empty recipe book and fresh
+     * inventory and returns the LSN it reflects, or 0 if there is no
+     * snapshot yet.
+     *
+     * @param file
+     * @param recipeBook
+     * @param inventory
+     * @return long
+     * @throws IOException if the snapshot is unreadable or corrupt
+     */
+    public static long load(Path file, RecipeBook recipeBook, Inventory inventory) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int end = buf.limit() - 4;
+        if (end < 16 || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT
+                || buf.getInt(end) != checksum(buf, end)) {
+            throw new IOException("Corrupt coffee maker snapshot " + file);
+        }
+        buf.position(8);
+        long lsn = buf.getLong();
+        int[] units = new int[buf.getInt()];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = buf.getInt();
+        }
+        inventory.restoreUnits(units);
+
+        buf.getInt();
+        int recipeCount = buf.getInt();
+        try {
+            for (int i = 0; i < recipeCount; i++) {
+                int slot = buf.getInt();
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                Recipe r = new Recipe();
+                r.setName(new String(name, StandardCharsets.UTF_8));
+                r.setPrice(String.valueOf(buf.getInt()));
+                int amounts = buf.getInt();
+                for (int j = 0; j < amounts; j++) {
+                    r.setAmount(j, String.valueOf(buf.getInt()));
+                }
+                recipeBook.restoreRecipe(slot, r);
+            }
+        } catch (RecipeException e) {
+            throw new IOException("Corrupt recipe in coffee maker snapshot " + file, e);
+        }
+        return lsn;
+    }
+
+    private static int checksum(MappedByteBuffer buf, int length) {
+        ByteBuffer covered = buf.duplicate();
+        covered.position(0);
+        covered.limit(length);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,747 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
+
+/**
+ * Append-only write-ahead log of everything that changes a coffee maker:
+ * purchases, restocks and recipe changes.
+ *
+ * Records are appended to in-memory segments and a background thread
+ * writes and forces them to the file.  Each force covers every record
+ * appended since the previous one, so concurrent callers waiting in
+ * {@link #awaitDurable(long)} share a single fsync (group commit).  A
+ * log sequence number (LSN) is the file offset just past a record.
+ *
+ * Appending takes no lock: a record is encoded and checksummed in a
+ * buffer of the appending thread, its place in the current segment is
+ * reserved with one atomic add, and it is published once the records
+ * before it are.  Only the appender whose record does not fit takes a
+ * lock, to start the next segment.  At most {@value #MAX_SEGMENTS}
+ * segments of {@value #SEGMENT_SIZE} bytes wait to be written; once
+ * they are full, appenders wait for the disk to catch up.
+ *
+ * A log opened without synchronous commit does not make callers of
+ * {@link #commit(long)} wait for the disk: changes are still written in
+ * order and forced in groups, but a crash can lose the last group.
+ *
+ * Each record is framed as its payload length, the CRC32 of the payload
+ * and the payload itself, whose first byte is the record type.  A torn
+ * or corrupt record at the end of the file, left by a crash, is dropped
+ * when the log is opened.  Opening the log reads every record to find
+ * that end unless it is given the LSN of a {@link SnapshotFile}, in which
+ * case only the records after the snapshot are read.
+ */
+public class TransactionLog implements Closeable {
+
+    static final byte PURCHASE = 1;
+    static final byte RESTOCK = 2;
+    static final byte ADD_RECIPE = 3;
+    static final byte EDIT_RECIPE = 4;
+    static final byte DELETE_RECIPE = 5;
+
+    static final int SEGMENT_SIZE = 64 * 1024;
+    static final int MAX_SEGMENTS = 16;
+
+    private static final int HEADER = 8;
+    private static final int SPINS = 16;
+    /**
+     * How long the flusher of a log without synchronous commit waits
+     * for more records after each write, so it writes them together
+     */
+    private static final long LINGER = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int RUNNING = 0;
+    private static final int LINGERING = 1;
+    private static final int IDLE = 2;
+
+    /**
+     * Each thread's buffer for encoding a record before it is appended
+     */
+    private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(Encoder::new);
+
+    private static final class Encoder {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        final CRC32 crc = new CRC32();
+    }
+
+    /**
+     * Records from a given LSN on, waiting to be written.  Appenders
+     * reserve bytes by adding to {@link #reserved}, which may run past
+     * the end; the one whose reservation crosses the end sets
+     * {@link #limit} and starts the next segment.
+     */
+    private static final class Segment {
+        final byte[] bytes;
+        /**
+         * LSN of the first byte, set before the segment becomes current
+         */
+        long base;
+        final AtomicInteger reserved = new AtomicInteger();
+        /**
+         * Bytes from the start that hold complete records
+         */
+        volatile int published;
+        /**
+         * Bytes used once the segment is full, -1 until then
+         */
+        volatile int limit = -1;
+        /**
+         * The segment after this one, set before the limit
+         */
+        Segment next;
+
+        Segment(int capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    private final FileChannel channel;
+    private final Thread flusher;
+    private final boolean synchronousCommit;
+
+    /**
+     * Guards the free segments and starting a new segment; appenders
+     * only take it when their record does not fit.
+     */
+    private final Object appendLock = new Object();
+    /**
+     * Waiters for durability park here.
+     */
+    private final Object durableLock = new Object();
+
+    private final ArrayDeque<Segment> free = new ArrayDeque<Segment>();
+    private int segments;
+    private volatile Segment current;
+    private volatile boolean closed;
+    private volatile int flusherState;
+
+    private volatile long durableLsn;
+    private volatile IOException failure;
+
+    /**
+     * Opens the log in the given file, creating it if needed, with
+     * synchronous commit.  Any incomplete record at the end of the file
+     * is discarded.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public TransactionLog(Path file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * Opens the log in the given file, creating it if needed.  Any
+     * incomplete record at the end of the file is discarded.
+     *
+     * @param file
+     * @param synchronousCommit whether {@link #commit(long)} waits
+     *                          until the record is on disk
+     * @throws IOException
+     */
+    public TransactionLog(Path file, boolean synchronousCommit) throws IOException {
+        this(file, synchronousCommit, 0);
+    }
+
+    /**
+     * Opens the log in the given file with synchronous commit, checking
+     * only the records from the given LSN on, as
+     * {@link #TransactionLog(Path, boolean, long)} does.
+     *
+     * @param file
+     * @param fromLsn
+     * @throws IOException
+     */
+    public TransactionLog(Path file, long fromLsn) throws IOException {
+        this(file, true, fromLsn);
+    }
+
+    /**
+     * Opens the log in the given file, creating it if needed.  The
+     * records before the given LSN, usually the one a snapshot was
+     * loaded at, are taken to be intact and are not read; any incomplete
+     * record after it at the end of the file is discarded.
+     *
+     * @param file
+     * @param synchronousCommit whether {@link #commit(long)} waits
+     *                          until the record is on disk
+     * @param fromLsn LSN of a record boundary that is already on disk
+     * @throws IOException if the file ends before fromLsn
+     */
+    public TransactionLog(Path file, boolean synchronousCommit, long fromLsn) throws IOException {
+        this.synchronousCommit = synchronousCommit;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < fromLsn) {
+            channel.close();
+            throw new IOException("Transaction log " + file + " ends before LSN " + fromLsn);
+        }
+        long end = scan(fromLsn, Long.MAX_VALUE, null, null);
+        channel.truncate(end);
+        durableLsn = end;
+        Segment first = new Segment(SEGMENT_SIZE);
+        first.base = end;
+        current = first;
+        segments = 1;
+        flusher = new Thread(() -> flushLoop(first), "transaction-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Logs a purchase of the recipe in the given slot and returns
+     * its LSN.
+     *
+     * @param slot
+     * @param r
+     * @return long
+     */
+    public long logPurchase(int slot, CompiledRecipe r) {
+        ByteBuffer buf = begin(13 + 4 * r.size());
+        buf.put(PURCHASE).putInt(slot).putInt(r.getPrice());
+        putAmounts(buf, r);
+        return append(buf);
+    }
+
+    /**
+     * Logs units added to the inventory, by ingredient index, and
+     * returns its LSN.
+     *
+     * @param units
+     * @return long
+     */
+    public long logRestock(int[] units) {
+        ByteBuffer buf = begin(5 + 4 * units.length);
+        buf.put(RESTOCK).putInt(units.length);
+        for (int unit : units) {
+            buf.putInt(unit);
+        }
+        return append(buf);
+    }
+
+    /**
+     * Logs a recipe added to the recipe book and returns its LSN.
+     *
+     * @param r
+     * @return long
+     */
+    public long logAddRecipe(CompiledRecipe r) {
+        byte[] name = r.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = begin(9 + name.length + 4 * r.size());
+        buf.put(ADD_RECIPE).putInt(name.length).put(name).putInt(r.getPrice());
+        putAmounts(buf, r);
+        return append(buf);
+    }
+
+    /**
+     * Logs a recipe replacing the one in the given slot and returns
+     * its LSN.
+     *
+     * @param slot
+     * @param r
+     * @return long
+     */
+    public long logEditRecipe(int slot, CompiledRecipe r) {
+        ByteBuffer buf = begin(13 + 4 * r.size());
+        buf.put(EDIT_RECIPE).putInt(slot).putInt(r.getPrice());
+        putAmounts(buf, r);
+        return append(buf);
+    }
+
+    /**
+     * Logs the deletion of the recipe in the given slot and returns
+     * its LSN.
+     *
+     * @param slot
+     * @return long
+     */
+    public long logDeleteRecipe(int slot) {
+        ByteBuffer buf = begin(5);
+        buf.put(DELETE_RECIPE).putInt(slot);
+        return append(buf);
+    }
+
+    /**
+     * Commits every record up to the given LSN: waits until they are on
+     * disk if the log uses synchronous commit, and returns at once
+     * otherwise.
+     *
+     * @param lsn
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public void commit(long lsn) {
+        if (synchronousCommit) {
+            awaitDurable(lsn);
+        } else if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    /**
+     * Blocks until every record up to the given LSN is on disk.
+     *
+     * @param lsn
+     * @throws UncheckedIOException if the log could not be written
+     */
+    public void awaitDurable(long lsn) {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        if (flusherState != RUNNING) {
+            LockSupport.unpark(flusher);
+        }
+        boolean interrupted = false;
+        synchronized (durableLock) {
+            while (durableLsn < lsn) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the LSN up to which the log is on disk.
+     *
+     * @return long
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Applies every record in the log to the given recipe book and
+     * inventory, which should be in their initial state.
+     *
+     * @param recipeBook
+     * @param inventory
+     * @throws IOException
+     */
+    public void replay(RecipeBook recipeBook, Inventory inventory) throws IOException {
+        replay(0, recipeBook, inventory);
+    }
+
+    /**
+     * Applies the records that start at or after the given LSN, up to
+     * the durable end of the log, to the given recipe book and
+     * inventory, and returns the LSN it stopped at.
+     *
+     * @param fromLsn
+     * @param recipeBook
+     * @param inventory
+     * @return long
+     * @throws IOException
+     */
+    public long replay(long fromLsn, RecipeBook recipeBook, Inventory inventory) throws IOException {
+        return scan(fromLsn, durableLsn, recipeBook, inventory);
+    }
+
+    /**
+     * Writes out and forces every appended record, then stops the
+     * flusher and closes the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean interrupted = false;
+            while (true) {
+                Segment last = current;
+                if (last.limit >= 0) {
+                    break;
+                }
+                int start = last.reserved.getAndAdd(last.bytes.length + 1);
+                if (start <= last.bytes.length) {
+                    last.limit = start;
+                    break;
+                }
+                // an appender is starting the next segment and sees closed
+                appendLock.notifyAll();
+                try {
+                    appendLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            appendLock.notifyAll();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns this thread's encoding buffer, cleared, with room for a
+     * record of the given payload length after the header.
+     */
+    private static ByteBuffer begin(int maxPayload) {
+        Encoder encoder = ENCODER.get();
+        if (encoder.buffer.capacity() < HEADER + maxPayload) {
+            encoder.buffer = ByteBuffer.allocate(HEADER + maxPayload);
+        }
+        ByteBuffer buf = encoder.buffer;
+        buf.clear();
+        buf.position(HEADER);
+        return buf;
+    }
+
+    /**
+     * Frames the record encoded in the given buffer, copies it into the
+     * current segment and returns its LSN.
+     */
+    private long append(ByteBuffer buf) {
+        int length = buf.position();
+        CRC32 crc = ENCODER.get().crc;
+        crc.reset();
+        crc.update(buf.array(), HEADER, length - HEADER);
+        buf.putInt(0, length - HEADER);
+        buf.putInt(4, (int) crc.getValue());
+        while (true) {
+            Segment segment = current;
+            int start = segment.reserved.getAndAdd(length);
+            int end = start + length;
+            if (end <= segment.bytes.length) {
+                long base = segment.base;
+                System.arraycopy(buf.array(), 0, segment.bytes, start, length);
+                publish(segment, start, end);
+                return base + end;
+            }
+            if (start <= segment.bytes.length) {
+                startNext(segment, start, length);
+            } else {
+                awaitNext(segment);
+            }
+        }
+    }
+
+    /**
+     * Marks the bytes of a record as complete once every record before
+     * it in the segment is, which takes a moment only if another
+     * appender was preempted between reserving and publishing.
+     */
+    private void publish(Segment segment, int start, int end) {
+        for (int spins = 0; segment.published != start; spins++) {
+            if (spins >= SPINS) {
+                Thread.yield();
+            }
+        }
+        segment.published = end;
+        if (flusherState == IDLE) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Closes the given segment at the given offset, the start of the
+     * first record that did not fit, and makes the next segment current,
+     * waiting for the flusher to free one if there are
+     * {@value #MAX_SEGMENTS} already.  A record larger than a segment
+     * gets a segment of its own.
+     */
+    private void startNext(Segment full, int limit, int length) {
+        boolean interrupted = false;
+        synchronized (appendLock) {
+            Segment next = null;
+            while (!closed && failure == null && (next = nextSegment(length)) == null) {
+                try {
+                    appendLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (next != null) {
+                next.base = full.base + limit;
+                next.next = null;
+                next.limit = -1;
+                next.published = 0;
+                next.reserved.set(0);
+                full.next = next;
+                current = next;
+            }
+            full.limit = limit;
+            appendLock.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LockSupport.unpark(flusher);
+        checkOpen();
+    }
+
+    private Segment nextSegment(int length) {
+        if (length > SEGMENT_SIZE) {
+            return new Segment(length);
+        }
+        Segment next = free.poll();
+        if (next == null && segments < MAX_SEGMENTS) {
+            segments++;
+            next = new Segment(SEGMENT_SIZE);
+        }
+        return next;
+    }
+
+    /**
+     * Waits until another appender has made the segment after the given
+     * one current.
+     */
+    private void awaitNext(Segment full) {
+        boolean interrupted = false;
+        synchronized (appendLock) {
+            while (current == full) {
+                checkOpen();
+                try {
+                    appendLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Transaction log is closed");
+        }
+    }
+
+    private static void putAmounts(ByteBuffer buf, CompiledRecipe r) {
+        for (int i = 0; i < r.size(); i++) {
+            buf.putInt(r.getAmount(i));
+        }
+    }
+
+    /**
+     * Body of the flusher thread, from the given first segment on:
+     * writes whatever has been published since the last pass, forces
+     * it, and then releases everyone waiting on it.  Full segments go
+     * back to the free list once written.
+     * Without synchronous commit it lingers after each write so the next
+     * one covers more records; appenders only wake it once it is idle,
+     * and waiters for durability whenever it is not running.
+     */
+    private void flushLoop(Segment segment) {
+        int flushed = 0;
+        boolean last = false;
+        while (true) {
+            long target = -1;
+            try {
+                while (true) {
+                    int end = segment.published;
+                    if (end > flushed) {
+                        ByteBuffer out = ByteBuffer.wrap(segment.bytes, flushed, end - flushed);
+                        while (out.hasRemaining()) {
+                            channel.write(out, segment.base + out.position());
+                        }
+                        flushed = end;
+                        target = segment.base + end;
+                    }
+                    if (segment.limit != flushed) {
+                        break;
+                    }
+                    Segment next = segment.next;
+                    if (next == null) {
+                        last = true;
+                        break;
+                    }
+                    recycle(segment);
+                    segment = next;
+                    flushed = 0;
+                }
+                if (target >= 0) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            if (target >= 0 || failure != null) {
+                synchronized (durableLock) {
+                    if (failure == null) {
+                        durableLsn = target;
+                    }
+                    durableLock.notifyAll();
+                }
+            }
+            if (failure != null) {
+                synchronized (appendLock) {
+                    appendLock.notifyAll();
+                }
+                return;
+            }
+            if (last) {
+                return;
+            }
+            if (target < 0) {
+                flusherState = IDLE;
+                if (segment.published == flushed && segment.limit != flushed) {
+                    LockSupport.park(this);
+                }
+                flusherState = RUNNING;
+            } else if (!synchronousCommit) {
+                flusherState = LINGERING;
+                LockSupport.parkNanos(this, LINGER);
+                flusherState = RUNNING;
+            }
+        }
+    }
+
+    private void recycle(Segment segment) {
+        synchronized (appendLock) {
+            if (segment.bytes.length == SEGMENT_SIZE) {
+                free.push(segment);
+            }
+            appendLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads records from the given offset up to the given limit,
+     * applying them to the recipe book and inventory when they are
+     * given, and returns the offset just past the last complete, intact
+     * record.
+     */
+    private long scan(long from, long limit, RecipeBook recipeBook, Inventory inventory) throws IOException {
+        long size = Math.min(channel.size(), limit);
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 check = new CRC32();
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || position + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER);
+            check.reset();
+            check.update(payload.array(), 0, length);
+            if ((int) check.getValue() != header.getInt(4)) {
+                break;
+            }
+            if (recipeBook != null) {
+                payload.flip();
+                apply(payload, recipeBook, inventory);
+            }
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of transaction log");
+            }
+        }
+    }
+
+    private static void apply(ByteBuffer payload, RecipeBook recipeBook, Inventory inventory) {
+        byte type = payload.get();
+        switch (type) {
+            case PURCHASE: {
+                payload.getInt();
+                payload.getInt();
+                int[] units = new int[payload.remaining() / 4];
+                for (int i = 0; i < units.length; i++) {
+                    units[i] = -payload.getInt();
+                }
+                inventory.adjustUnits(units);
+                break;
+            }
+            case RESTOCK: {
+                int[] units = new int[payload.getInt()];
+                for (int i = 0; i < units.length; i++) {
+                    units[i] = payload.getInt();
+                }
+                inventory.adjustUnits(units);
+                break;
+            }
+            case ADD_RECIPE: {
+                byte[] name = new byte[payload.getInt()];
+                payload.get(name);
+                Recipe r = readRecipe(payload);
+                r.setName(new String(name, StandardCharsets.UTF_8));
+                recipeBook.addRecipe(r);
+                break;
+            }
+            case EDIT_RECIPE: {
+                int slot = payload.getInt();
+                recipeBook.editRecipe(slot, readRecipe(payload));
+                break;
+            }
+            case DELETE_RECIPE:
+                recipeBook.deleteRecipe(payload.getInt());
+                break;
+            default:
+                throw new IllegalStateException("Unknown transaction log record " + type);
+        }
+    }
+
+    private static Recipe readRecipe(ByteBuffer payload) {
+        Recipe r = new Recipe();
+        try {
+            r.setPrice(String.valueOf(payload.getInt()));
+            for (int i = 0; payload.hasRemaining(); i++) {
+                r.setAmount(i, String.valueOf(payload.getInt()));
+            }
+        } catch (RecipeException e) {
+            throw new IllegalStateException("Corrupt recipe in transaction log", e);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2009,  Sarah Heckman, Laurie Williams, Dright Ho
+ * All Rights Reserved.
+ *
+ * Permission has been explicitly granted to the University of Minnesota
+ * Software Engineering Center to use and distribute this source for
+ * educational purposes, including delivering online education through
+ * Coursera or other entities.
+ *
+ * No warranty is given regarding this software, including warranties as
+ * to the correctness or completeness of this software, including
+ * fitness for purpose.
+ */
+package edu.ncsu.csc326.coffeemaker;
+
+/**
+ * Parses amounts of units and money.  Unlike {@link Integer#parseInt}
+ * it reports bad input with a return value instead of an exception, so
+ * rejecting a malformed amount allocates nothing.  It accepts exactly
+ * the strings that parseInt accepts and turns into a non-negative int,
+ * including a leading "+" and "-0".
+ */
+public final class Units {
+
+    /**
+     * Returned for anything that is not a non-negative int
+     */
+    public static final int INVALID = -1;
+
+    private Units() {
+    }
+
+    /**
+     * Returns the non-negative int written in the given text, or
+     * {@link #INVALID} if it is null, empty, negative, too large or not
+     * a decimal integer.
+     *
+     * @param text
+     * @return int
+     */
+    public static int parse(CharSequence text) {
+        if (text == null) {
+            return INVALID;
+        }
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0) {
+            char sign = text.charAt(0);
+            if (sign == '+' || sign == '-') {
+                negative = sign == '-';
+                i = 1;
+            }
+        }
+        if (i == length) {
+            return INVALID;
+        }
+        int value = 0;
+        for (; i < length; i++) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit < 0 || value > (Integer.MAX_VALUE - digit) / 10) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        return negative && value != 0 ? INVALID : value;
+    }
+}
@@ -21,4 +21,13 @@ public class InventoryException extends Exception {
 		super(msg);
 	}
 
+	/**
+	 * Creates an exception that only records a stack trace if asked to.
+	 * Without one it can be made once and thrown again every time the
+	 * same input is rejected.
+	 */
+	public InventoryException(String msg, boolean writableStackTrace) {
+		super(msg, null, false, writableStackTrace);
+	}
+
 }
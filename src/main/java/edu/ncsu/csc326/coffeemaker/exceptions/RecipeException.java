@@ -21,4 +21,13 @@ private static final long serialVersionUID = 1L;
 		super(msg);
 	}
 
+	/**
+	 * Creates an exception that only records a stack trace if asked to.
+	 * Without one it can be made once and thrown again every time the
+	 * same input is rejected.
+	 */
+	public RecipeException(String msg, boolean writableStackTrace) {
+		super(msg, null, false, writableStackTrace);
+	}
+
 }
@@ -18,8 +18,35 @@
  */
 package edu.ncsu.csc326.coffeemaker;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import edu.ncsu.csc326.coffeemaker.exceptions.InventoryException;
 import edu.ncsu.csc326.coffeemaker.exceptions.RecipeException;
@@ -55,6 +82,10 @@ public class CoffeeMakerTest {
     private RecipeBook mockRecipeBook;
     private CoffeeMaker mockCoffeeMaker;
 
+    // directory for transaction logs
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     // tolerance for comparing double values
     static final double TOL = 1.0E-4;
     Integer payment;
@@ -212,6 +243,111 @@ public class CoffeeMakerTest {
         assertEquals(coffeeMaker.checkInventory(), "Coffee: 25\nMilk: 35\nSugar: 45\nChocolate: 55\n");
     }
 
+    /**
+     * Test that inventory snapshots are reused until the inventory
+     * changes, and that the units can be read into an array
+     *
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase A13
+     */
+    @Test
+    public void testInventorySnapshot() throws InventoryException {
+        InventorySnapshot snapshot = coffeeMaker.getInventorySnapshot();
+        assertSame(snapshot, coffeeMaker.getInventorySnapshot());
+        assertSame(coffeeMaker.checkInventory(), coffeeMaker.checkInventory());
+
+        coffeeMaker.addInventory("1", "2", "3", "4");
+        InventorySnapshot restocked = coffeeMaker.getInventorySnapshot();
+        assertNotSame(snapshot, restocked);
+        assertTrue(restocked.getVersion() > snapshot.getVersion());
+        assertEquals(15, snapshot.getUnits(Ingredients.MILK));
+        assertEquals(17, restocked.getUnits(Ingredients.MILK));
+
+        int[] units = new int[Ingredients.DEFAULT.size()];
+        assertEquals(restocked.getVersion(), coffeeMaker.checkInventory(units));
+        assertArrayEquals(new int[]{16, 17, 18, 19}, units);
+    }
+
+    /**
+     * Test that purchases are counted by recipe and outcome and timed
+     *
+     * @TestCase A14
+     */
+    @Test
+    public void testPurchaseMetrics() {
+        assertEquals(25, mockCoffeeMaker.makeCoffee(0, 75));
+        assertEquals(25, mockCoffeeMaker.makeCoffee(0, 75));
+        assertEquals(50, mockCoffeeMaker.makeCoffee(2, 50));
+        assertEquals(75, mockCoffeeMaker.makeCoffee(1, 75));
+        assertEquals(10, mockCoffeeMaker.makeCoffee(7, 10));
+
+        CoffeeMakerMetrics metrics = mockCoffeeMaker.getMetrics();
+        assertEquals(2, metrics.getPurchases(0, PurchaseOutcome.SUCCESS));
+        assertEquals(1, metrics.getPurchases(2, PurchaseOutcome.INSUFFICIENT_FUNDS));
+        assertEquals(1, metrics.getPurchases(1, PurchaseOutcome.OUT_OF_INGREDIENTS));
+        assertEquals(1, metrics.getPurchases(PurchaseOutcome.NO_RECIPE));
+        assertEquals(0, metrics.getPurchases(7, PurchaseOutcome.NO_RECIPE));
+
+        LatencyHistogram.Snapshot latency = metrics.getLatency(CoffeeMakerMetrics.Operation.PURCHASE);
+        assertEquals(5, latency.getCount());
+        assertTrue(latency.getValueAtPercentile(50) <= latency.getValueAtPercentile(100));
+        assertEquals(latency.getMax(), latency.getValueAtPercentile(100));
+
+        String export = metrics.export();
+        assertTrue(export.contains("coffeemaker_purchases_total{slot=\"0\",outcome=\"success\"} 2\n"));
+        assertTrue(export.contains("coffeemaker_purchase_nanos_count 5\n"));
+        assertTrue(export.contains("coffeemaker_inventory_units{ingredient=\"coffee\"} 9\n"));
+    }
+
+    /**
+     * Test that a purchase reports why it failed along with the change
+     *
+     * @TestCase A16
+     */
+    @Test
+    public void testPurchaseResult() {
+        long made = mockCoffeeMaker.purchase(0, 75);
+        assertTrue(PurchaseResult.isSuccess(made));
+        assertEquals(PurchaseOutcome.SUCCESS, PurchaseResult.outcome(made));
+        assertEquals(25, PurchaseResult.change(made));
+
+        long exact = mockCoffeeMaker.purchase(0, 50);
+        assertTrue(PurchaseResult.isSuccess(exact));
+        assertEquals(0, PurchaseResult.change(exact));
+
+        assertEquals(PurchaseResult.of(PurchaseOutcome.INSUFFICIENT_FUNDS, 0), mockCoffeeMaker.purchase(2, 0));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.OUT_OF_INGREDIENTS, 80), mockCoffeeMaker.purchase(1, 80));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.NO_RECIPE, -5), mockCoffeeMaker.purchase(-1, -5));
+        assertEquals(-5, PurchaseResult.change(PurchaseResult.of(PurchaseOutcome.NO_RECIPE, -5)));
+
+        long[] results = new long[3];
+        assertEquals(1, mockCoffeeMaker.purchaseBatch(new int[]{0, 1, 3}, new int[]{60, 100, 10}, results));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.SUCCESS, 10), results[0]);
+        assertEquals(PurchaseResult.of(PurchaseOutcome.OUT_OF_INGREDIENTS, 100), results[1]);
+        assertEquals(PurchaseResult.of(PurchaseOutcome.NO_RECIPE, 10), results[2]);
+    }
+
+    /**
+     * Test that latencies are kept to within 12.5% across the range
+     *
+     * @TestCase A15
+     */
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+        long median = snapshot.getValueAtPercentile(50);
+        assertTrue(median >= 500000 && median <= 562500);
+        long p99 = snapshot.getValueAtPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+    }
+
     /**
      * Test purchasing beverage with enough money and ingredients
      *
@@ -271,6 +407,50 @@ public class CoffeeMakerTest {
         assertEquals(coffeeMaker.checkInventory(), testInventory.toString());
     }
 
+    /**
+     * Test purchasing beverages from several threads at once
+     *
+     * @throws InterruptedException if a purchasing thread is interrupted
+     * @TestCase A11
+     */
+    @Test
+    public void testConcurrentMakeCoffee() throws InterruptedException {
+        final AtomicInteger sold = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    if (mockCoffeeMaker.makeCoffee(0, 50) == 0) {
+                        sold.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(5, sold.get());
+        assertEquals("Coffee: 0\nMilk: 10\nSugar: 10\nChocolate: 15\n", mockCoffeeMaker.checkInventory());
+    }
+
+    /**
+     * Test purchasing a batch of beverages, where the inventory runs
+     * out part of the way through
+     *
+     * @TestCase A12
+     */
+    @Test
+    public void testMakeCoffeeBatch() {
+        // five coffees use all 15 units of coffee, so the sixth is refused;
+        // the unknown recipe and the underpaid order get their money back
+        int[] change = mockCoffeeMaker.makeCoffeeBatch(
+                new int[]{0, 0, 3, 0, 2, 0, 0, 0},
+                new int[]{60, 50, 100, 50, 10, 50, 50, 70});
+        assertArrayEquals(new int[]{10, 0, 100, 0, 10, 0, 0, 70}, change);
+        assertEquals("Coffee: 0\nMilk: 10\nSugar: 10\nChocolate: 15\n", mockCoffeeMaker.checkInventory());
+    }
+
     /**
      * Test adding the 4th recipe
      *
@@ -293,6 +473,279 @@ public class CoffeeMakerTest {
         assertFalse(mockCoffeeMaker.addRecipe(recipe2));
     }
 
+    /**
+     * Test adding more recipes than the initial size of the recipe book
+     *
+     * @TestCase B8
+     */
+    @Test
+    public void testAddManyRecipes() throws RecipeException {
+        RecipeBook recipeBook = new RecipeBook();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(recipeBook.addRecipe(createRecipe("Recipe " + i, 50, 1, 1, 1, 1)));
+        }
+        assertEquals(42, recipeBook.indexOf("Recipe 42"));
+        assertEquals("Recipe 42", recipeBook.getRecipes()[42].getName());
+        assertFalse(recipeBook.addRecipe(createRecipe("Recipe 42", 50, 1, 1, 1, 1)));
+
+        // a deleted slot is reused by the next recipe
+        assertEquals("Recipe 7", recipeBook.deleteRecipe(7));
+        assertEquals(-1, recipeBook.indexOf("Recipe 7"));
+        assertTrue(recipeBook.addRecipe(recipe1));
+        assertEquals(7, recipeBook.indexOf("Coffee"));
+    }
+
+    /**
+     * Test that a recipe array already handed out is not changed by
+     * later edits to the recipe book
+     *
+     * @TestCase B9
+     */
+    @Test
+    public void testRecipeSnapshot() {
+        coffeeMaker.addRecipe(recipe1);
+        Recipe[] before = coffeeMaker.getRecipes();
+        coffeeMaker.editRecipe(0, recipe2);
+        coffeeMaker.addRecipe(recipe3);
+
+        assertEquals(recipe1, before[0]);
+        assertNull(before[1]);
+        assertEquals("Coffee", coffeeMaker.getRecipes()[0].getName());
+        assertEquals(75, coffeeMaker.getRecipes()[0].getPrice());
+        assertEquals(recipe3, coffeeMaker.getRecipes()[1]);
+    }
+
+    /**
+     * Test which recipes can be brewed as the inventory and the menu
+     * change
+     *
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase B10
+     */
+    @Test
+    public void testAvailability() throws InventoryException {
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.addRecipe(recipe2);
+        coffeeMaker.addRecipe(recipe3);
+        coffeeMaker.addRecipe(recipe4);
+        Availability available = coffeeMaker.getAvailability();
+        assertSame(available, coffeeMaker.getAvailability());
+        assertTrue(available.isAvailable(0));
+        assertFalse(available.isAvailable(1));
+        assertEquals(2, available.nextAvailable(1));
+        assertEquals(3, available.getCount());
+        assertFalse(available.isAvailable(4));
+        assertEquals(-1, available.nextAvailable(4));
+
+        coffeeMaker.addInventory("0", "0", "0", "5");
+        assertTrue(coffeeMaker.getAvailability().isAvailable(1));
+        assertEquals(0, coffeeMaker.makeCoffee(1, 75));
+        assertFalse(coffeeMaker.getAvailability().isAvailable(1));
+        assertFalse(coffeeMaker.getAvailability().isAvailable(3));
+        assertTrue(coffeeMaker.getAvailability().isAvailable(2));
+
+        coffeeMaker.deleteRecipe(0);
+        assertEquals(2, coffeeMaker.getAvailability().nextAvailable(0));
+    }
+
+    /**
+     * Test that the availability of a large menu, kept up to date one
+     * change at a time, matches checking every recipe
+     *
+     * @throws RecipeException    when use invalid unit in Recipe class
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase B11
+     */
+    @Test
+    public void testAvailabilityMatchesInventory() throws RecipeException, InventoryException {
+        Random random = new Random(326);
+        Inventory inventory = new Inventory();
+        CoffeeMaker machine = new CoffeeMaker(new RecipeBook(), inventory);
+        for (int i = 0; i < 150; i++) {
+            machine.addRecipe(createRecipe("Recipe " + i, 10, random.nextInt(4), random.nextInt(4),
+                    random.nextInt(3), random.nextInt(2) * random.nextInt(6)));
+        }
+        for (int round = 0; round < 500; round++) {
+            if (random.nextInt(4) == 0) {
+                machine.addInventory(String.valueOf(random.nextInt(8)), String.valueOf(random.nextInt(8)),
+                        String.valueOf(random.nextInt(8)), String.valueOf(random.nextInt(8)));
+            } else {
+                machine.makeCoffee(random.nextInt(150), 10);
+            }
+            if (round % 50 == 0) {
+                machine.deleteRecipe(random.nextInt(150));
+            }
+            Availability available = machine.getAvailability();
+            Recipe[] recipes = machine.getRecipes();
+            for (int slot = 0; slot < recipes.length; slot++) {
+                assertEquals(recipes[slot] != null && inventory.enoughIngredients(recipes[slot]),
+                        available.isAvailable(slot));
+            }
+        }
+    }
+
+    /**
+     * Test the most servings of each recipe and the best mix for a
+     * demand
+     *
+     * @TestCase B12
+     */
+    @Test
+    public void testServings() {
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.addRecipe(recipe2);
+        coffeeMaker.addRecipe(recipe3);
+        coffeeMaker.addRecipe(recipe4);
+        Servings servings = coffeeMaker.getServings();
+        assertSame(servings, coffeeMaker.getServings());
+        assertEquals(5, servings.getMaxServings(0));
+        assertEquals(0, servings.getMaxServings(1));
+        assertEquals(5, servings.getMaxServings(2));
+        assertEquals(3, servings.getMaxServings(3));
+
+        Servings.Mix mix = servings.getBestMix(new int[]{5, 5, 5, 5});
+        assertSame(mix, servings.getBestMix(new int[]{5, 5, 5, 5}));
+        assertTrue(mix.isOptimal());
+        assertEquals(500, mix.getRevenue());
+        assertEquals(5, mix.getServings(2));
+
+        mix = servings.getBestMix(new int[]{5, 0, 2, 5});
+        assertEquals(395, mix.getRevenue());
+        assertEquals(0, mix.getServings(0));
+        assertEquals(2, mix.getServings(2));
+        assertEquals(3, mix.getServings(3));
+
+        assertEquals(0, coffeeMaker.makeCoffee(2, 100));
+        assertNotSame(servings, coffeeMaker.getServings());
+        assertEquals(4, coffeeMaker.getServings().getMaxServings(2));
+    }
+
+    /**
+     * Test that the best mix matches trying every mix on small random
+     * menus
+     *
+     * @throws RecipeException if there was an error parsing the ingredient
+     *                         amount when setting up the recipe.
+     * @TestCase B13
+     */
+    @Test
+    public void testBestMixMatchesExhaustiveSearch() throws RecipeException {
+        Random random = new Random(18);
+        for (int trial = 0; trial < 40; trial++) {
+            Inventory inventory = new Inventory();
+            CoffeeMaker machine = new CoffeeMaker(new RecipeBook(), inventory);
+            int[][] amounts = new int[4][];
+            int[] prices = new int[4];
+            for (int r = 0; r < 4; r++) {
+                amounts[r] = new int[]{random.nextInt(5), random.nextInt(5), random.nextInt(5), random.nextInt(5)};
+                prices[r] = 1 + random.nextInt(100);
+                machine.addRecipe(createRecipe("Recipe " + r, prices[r],
+                        amounts[r][0], amounts[r][1], amounts[r][2], amounts[r][3]));
+            }
+            int[] demand = {random.nextInt(6), random.nextInt(6), random.nextInt(6), random.nextInt(6)};
+
+            long best = 0;
+            for (int mix = 0; mix < 6 * 6 * 6 * 6; mix++) {
+                int[] counts = {mix % 6, mix / 6 % 6, mix / 36 % 6, mix / 216};
+                long revenue = 0;
+                boolean fits = true;
+                for (int i = 0; i < 4; i++) {
+                    int used = 0;
+                    for (int r = 0; r < 4; r++) {
+                        used += amounts[r][i] * counts[r];
+                    }
+                    fits &= used <= 15;
+                }
+                for (int r = 0; r < 4; r++) {
+                    fits &= counts[r] <= demand[r];
+                    revenue += (long) prices[r] * counts[r];
+                }
+                if (fits) {
+                    best = Math.max(best, revenue);
+                }
+            }
+            Servings.Mix mix = machine.getServings().getBestMix(demand);
+            assertEquals(best, mix.getRevenue());
+            assertTrue(mix.isOptimal());
+        }
+    }
+
+    /**
+     * Test that the recipe book keeps its own copies of recipes, so
+     * changing a recipe after adding it does not change the menu
+     *
+     * @throws RecipeException when use invalid unit in Recipe class
+     * @TestCase B14
+     */
+    @Test
+    public void testRecipeCopies() throws RecipeException {
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.editRecipe(0, recipe3);
+        assertEquals("Latte", recipe3.getName());
+        recipe3.setPrice("1");
+        recipe3.setAmtCoffee("0");
+        Recipe stored = coffeeMaker.getRecipes()[0];
+        assertNotSame(recipe3, stored);
+        assertEquals("Coffee", stored.getName());
+        assertEquals(100, stored.getPrice());
+        assertEquals(3, stored.getAmtCoffee());
+        assertEquals(50, coffeeMaker.makeCoffee(0, 150));
+        try {
+            stored.setPrice("1");
+            fail("a recipe in the book was changed");
+        } catch (UnsupportedOperationException e) {
+            assertEquals(100, coffeeMaker.getRecipes()[0].getPrice());
+        }
+    }
+
+    /**
+     * Test that the best mix on a mid-size menu fits the stock and earns
+     * at least the relaxed optimum rounded down
+     *
+     * @throws RecipeException when use invalid unit in Recipe class
+     * @TestCase B15
+     */
+    @Test
+    public void testBestMixBeatsRoundedRelaxation() throws RecipeException {
+        Random random = new Random(64);
+        Recipe[] menu = new Recipe[64];
+        int[][] amounts = new int[menu.length][];
+        int[] demand = new int[menu.length];
+        for (int r = 0; r < menu.length; r++) {
+            amounts[r] = new int[]{1 + random.nextInt(9), 1 + random.nextInt(9), 1 + random.nextInt(9), 1 + random.nextInt(9)};
+            menu[r] = createRecipe("Recipe " + r, 10 + random.nextInt(90),
+                    amounts[r][0], amounts[r][1], amounts[r][2], amounts[r][3]);
+            demand[r] = 20;
+        }
+        int[] stock = {1000, 1000, 1000, 1000};
+        Servings servings = Servings.of(menu, new InventorySnapshot(Ingredients.DEFAULT, stock, 0));
+
+        double[] relaxed = servings.getRelaxedMix(demand);
+        Servings.Mix mix = servings.getBestMix(demand);
+        double relaxedRevenue = 0;
+        long flooredRevenue = 0;
+        long revenue = 0;
+        int[] used = new int[4];
+        for (int r = 0; r < menu.length; r++) {
+            assertTrue(relaxed[r] >= -1e-9 && relaxed[r] <= demand[r] + 1e-9);
+            relaxedRevenue += relaxed[r] * menu[r].getPrice();
+            flooredRevenue += (long) Math.floor(relaxed[r] + 1e-9) * menu[r].getPrice();
+            int count = mix.getServings(r);
+            assertTrue(count >= 0 && count <= demand[r]);
+            revenue += (long) count * menu[r].getPrice();
+            for (int i = 0; i < 4; i++) {
+                used[i] += count * amounts[r][i];
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(used[i] <= stock[i]);
+        }
+        assertEquals(revenue, mix.getRevenue());
+        assertTrue(revenue >= flooredRevenue);
+        assertTrue(revenue <= mix.getBound());
+        assertTrue(mix.getBound() <= relaxedRevenue + 1e-6);
+    }
+
     /**
      * Test deleting recipe swing steps
      *
@@ -445,6 +898,63 @@ public class CoffeeMakerTest {
         }
     }
 
+    /**
+     * Test that the compiled form of a recipe is reused until the
+     * recipe changes
+     *
+     * @throws RecipeException when use invalid unit in Recipe class
+     * @TestCase C6
+     */
+    @Test
+    public void testCompileRecipe() throws RecipeException {
+        CompiledRecipe compiled = recipe2.compile();
+        assertSame(compiled, recipe2.compile());
+        assertEquals(75, compiled.getPrice());
+        assertEquals(20, compiled.getAmtChocolate());
+
+        recipe2.setAmtChocolate("5");
+        assertNotSame(compiled, recipe2.compile());
+        assertEquals(20, compiled.getAmtChocolate());
+        assertEquals(5, recipe2.compile().getAmtChocolate());
+    }
+
+    /**
+     * Test that amounts are parsed like Integer.parseInt and that bad
+     * amounts are rejected without a stack trace
+     *
+     * @TestCase C7
+     */
+    @Test
+    public void testParseUnits() {
+        String[] inputs = {"0", "15", "+5", "-0", "007", "2147483647", "2147483648", "-1", "-2147483648",
+            "", "+", "-", "1.5", "12a", " 1", "1 ", "99999999999", null};
+        for (String input : inputs) {
+            int expected;
+            try {
+                expected = Math.max(Units.INVALID, Integer.parseInt(input));
+            } catch (NumberFormatException e) {
+                expected = Units.INVALID;
+            }
+            assertEquals(input, expected, Units.parse(input));
+        }
+
+        try {
+            recipe1.setAmtMilk("lots");
+            fail("a bad amount was accepted");
+        } catch (RecipeException e) {
+            assertEquals("Units of milk must be a positive integer", e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+        }
+        assertEquals(1, recipe1.getAmtMilk());
+        try {
+            new Inventory().addSugar("+-3");
+            fail("a bad amount was accepted");
+        } catch (InventoryException e) {
+            assertEquals("Units of sugar must be a positive integer", e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+        }
+    }
+
     /**
      * Test adding inventory with invalid unit of coffee
      *
@@ -563,6 +1073,869 @@ public class CoffeeMakerTest {
         assertFalse(inventory.enoughIngredients(recipeF));
     }
 
+    /**
+     * Test that two inventories do not share their stock
+     *
+     * @TestCase D7
+     */
+    @Test
+    public void testSeparateInventories() {
+        Inventory inventory = new Inventory();
+        Inventory otherInventory = new Inventory();
+        inventory.useIngredients(recipe4);
+        assertEquals(12, inventory.getCoffee());
+        assertEquals(15, otherInventory.getCoffee());
+        assertEquals(15, otherInventory.getChocolate());
+    }
+
+    /**
+     * Test that concurrent purchases never use more ingredients than the
+     * inventory holds
+     *
+     * @throws InterruptedException if a purchasing thread is interrupted
+     * @TestCase D8
+     */
+    @Test
+    public void testConcurrentUseIngredients() throws InterruptedException {
+        final Inventory inventory = new Inventory();
+        final AtomicInteger made = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    if (inventory.useIngredients(recipe1)) {
+                        made.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // coffee runs out first: 15 units / 3 per cup
+        assertEquals(5, made.get());
+        assertEquals(0, inventory.getCoffee());
+        assertEquals(10, inventory.getMilk());
+    }
+
+    /**
+     * Test an inventory and recipe with more than the four standard
+     * ingredients
+     *
+     * @throws RecipeException    when use invalid unit in Recipe class
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase D9
+     */
+    @Test
+    public void testManyIngredients() throws RecipeException, InventoryException {
+        Ingredients ingredients = Ingredients.DEFAULT;
+        for (int i = 0; i < 30; i++) {
+            ingredients = ingredients.with("Extra " + i);
+        }
+        int caramel = ingredients.size();
+        ingredients = ingredients.with("Caramel");
+        assertEquals(caramel, ingredients.indexOf("Caramel"));
+        assertEquals(Ingredients.SUGAR, ingredients.indexOf("Sugar"));
+
+        Inventory inventory = new Inventory(ingredients);
+        Recipe caramelLatte = createRecipe("Caramel Latte", 100, 3, 3, 1, 0);
+        caramelLatte.setAmount(caramel, "10");
+        assertTrue(inventory.useIngredients(caramelLatte));
+        assertFalse(inventory.useIngredients(caramelLatte));
+        assertEquals(5, inventory.getUnits(caramel));
+        assertEquals(12, inventory.getCoffee());
+
+        inventory.addUnits(caramel, "5");
+        assertTrue(inventory.useIngredients(caramelLatte));
+        assertEquals(0, inventory.getUnits(caramel));
+
+        // a recipe that needs an ingredient the inventory does not stock
+        assertFalse(new Inventory().useIngredients(caramelLatte));
+    }
+
+    /**
+     * Test projecting when ingredients run out from their rate of use,
+     * and the restocks recommended before they do
+     *
+     * @TestCase D10
+     */
+    @Test
+    public void testRestockPlanner() {
+        AtomicLong clock = new AtomicLong();
+        ConsumptionTracker consumption = new ConsumptionTracker(Ingredients.DEFAULT, clock::get);
+        Inventory inventory = new Inventory(Ingredients.DEFAULT, consumption);
+        inventory.setCoffee(100);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(inventory.useIngredients(recipe1));
+        }
+        assertEquals(30, consumption.getUsed(Ingredients.COFFEE));
+        assertEquals(0, consumption.getRate(Ingredients.COFFEE), 0);
+
+        clock.set(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(3, consumption.getRate(Ingredients.COFFEE), 1e-9);
+        assertEquals(1, consumption.getRate(Ingredients.MILK), 1e-9);
+        assertEquals(70 / 3.0, consumption.getSecondsToEmpty(Ingredients.COFFEE, 70), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, consumption.getSecondsToEmpty(Ingredients.CHOCOLATE, 15), 0);
+
+        List<RestockPlanner.Recommendation> plan =
+                new RestockPlanner(inventory, 10, 20, TimeUnit.SECONDS).plan();
+        assertEquals(3, plan.size());
+        assertEquals("Milk", plan.get(0).getName());
+        assertTrue(plan.get(0).isUrgent());
+        assertEquals(25, plan.get(0).getAmount());
+        assertEquals("Sugar", plan.get(1).getName());
+        assertEquals("Coffee", plan.get(2).getName());
+        assertFalse(plan.get(2).isUrgent());
+        assertEquals(20, plan.get(2).getAmount());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(3 * Math.exp(-5.0 / 60), consumption.getRate(Ingredients.COFFEE), 1e-9);
+    }
+
+    /**
+     * Test that a restock adds every amount in one update or, if any
+     * amount is bad, adds nothing, for one coffee maker and for a fleet
+     *
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase D11
+     */
+    @Test
+    public void testAtomicRestock() throws InventoryException {
+        Inventory inventory = new Inventory();
+        inventory.addUnits("1", "2", "3");
+        assertEquals(1, inventory.getVersion());
+        assertEquals("Coffee: 16\nMilk: 17\nSugar: 18\nChocolate: 15\n", inventory.toString());
+        try {
+            inventory.addUnits("5", "5", "5", "x");
+            fail("bad chocolate was added");
+        } catch (InventoryException e) {
+            assertEquals("Units of chocolate must be a positive integer", e.getMessage());
+        }
+        assertEquals(1, inventory.getVersion());
+        assertEquals(16, inventory.getCoffee());
+        String max = String.valueOf(Integer.MAX_VALUE);
+        try {
+            inventory.addUnits("0", "1", max);
+            fail("sugar overflowed");
+        } catch (InventoryException e) {
+            assertEquals("Units of sugar would overflow", e.getMessage());
+        }
+        try {
+            inventory.addMilk(max);
+            fail("milk overflowed");
+        } catch (InventoryException e) {
+            assertEquals("Units of milk would overflow", e.getMessage());
+        }
+        assertEquals(1, inventory.getVersion());
+        assertEquals(17, inventory.getMilk());
+
+        long version = coffeeMaker.getInventorySnapshot().getVersion();
+        try {
+            coffeeMaker.addInventory("5", "5", "-5", "5");
+            fail("negative sugar was added");
+        } catch (InventoryException e) {
+            assertEquals("Units of sugar must be a positive integer", e.getMessage());
+        }
+        assertEquals(version, coffeeMaker.getInventorySnapshot().getVersion());
+        coffeeMaker.addInventory("5", "5", "5", "5");
+        assertEquals(version + 1, coffeeMaker.getInventorySnapshot().getVersion());
+
+        CoffeeMakerFleet fleet = new CoffeeMakerFleet(3);
+        try {
+            fleet.addInventory(new String[][]{{"10", "0", "0", "0"}, null, {"1", "milk"}});
+            fail("bad milk was added");
+        } catch (InventoryException e) {
+            assertEquals("Units of milk must be a positive integer", e.getMessage());
+        }
+        assertEquals(45, fleet.getUnits(Ingredients.COFFEE));
+        fleet.addInventory(new String[][]{{"10", "0", "0", "0"}, null, {"1", "2"}});
+        assertEquals(25, fleet.getShard(0).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(15, fleet.getShard(1).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(16, fleet.getShard(2).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(17, fleet.getShard(2).getInventorySnapshot().getUnits(Ingredients.MILK));
+        assertEquals(1, fleet.getShard(2).getInventorySnapshot().getVersion());
+    }
+
+    /**
+     * Test that an optimistic read validates only while the inventory
+     * is unchanged
+     *
+     * @TestCase D12
+     */
+    @Test
+    public void testOptimisticRead() {
+        Inventory inventory = new Inventory();
+        long stamp = inventory.tryOptimisticRead();
+        int coffee = inventory.getCoffee();
+        int milk = inventory.getMilk();
+        assertTrue(inventory.validate(stamp));
+        assertEquals(15, coffee);
+        assertEquals(15, milk);
+
+        assertTrue(inventory.useIngredients(recipe3));
+        assertFalse(inventory.validate(stamp));
+        InventorySnapshot snapshot = inventory.snapshot();
+        assertEquals(12, snapshot.getUnits(Ingredients.COFFEE));
+        assertEquals(12, snapshot.getUnits(Ingredients.MILK));
+        assertTrue(inventory.validate(snapshot.getVersion()));
+    }
+
+    /**
+     * Test that replaying a transaction log restores the recipes and
+     * inventory of a coffee maker
+     *
+     * @throws IOException        if the log cannot be written or read
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase E1
+     */
+    @Test
+    public void testTransactionLogReplay() throws IOException, InventoryException {
+        Path file = folder.getRoot().toPath().resolve("coffeemaker.log");
+        TransactionLog log = new TransactionLog(file);
+        CoffeeMaker logged = new CoffeeMaker(new RecipeBook(), new Inventory(), log);
+        logged.addRecipe(recipe1);
+        logged.addRecipe(recipe2);
+        logged.addRecipe(recipe3);
+        logged.addInventory("5", "5", "5", "5");
+        assertEquals(25, logged.makeCoffee(0, 75));
+        assertArrayEquals(new int[]{0, 0}, logged.makeCoffeeBatch(new int[]{2, 1}, new int[]{100, 75}));
+        logged.deleteRecipe(1);
+        logged.editRecipe(2, recipe4);
+        try {
+            logged.addInventory("1", "1", "-1", "1");
+            fail("negative sugar was added");
+        } catch (InventoryException e) {
+            // nothing was added
+        }
+        log.close();
+
+        RecipeBook recipeBook = new RecipeBook();
+        Inventory inventory = new Inventory();
+        TransactionLog reopened = new TransactionLog(file);
+        reopened.replay(recipeBook, inventory);
+        reopened.close();
+
+        assertEquals(logged.checkInventory(), inventory.toString());
+        assertEquals("Coffee", recipeBook.getRecipes()[0].getName());
+        assertNull(recipeBook.getRecipes()[1]);
+        assertEquals("Latte", recipeBook.getRecipes()[2].getName());
+        assertEquals(65, recipeBook.getRecipes()[2].getPrice());
+        assertEquals(4, recipeBook.getRecipes()[2].getAmtChocolate());
+    }
+
+    /**
+     * Test that records appended by several threads at once, filling
+     * more segments than the log keeps waiting, and a record larger than
+     * a segment are all replayed
+     *
+     * @throws Exception if the log cannot be written or read
+     * @TestCase E7
+     */
+    @Test
+    public void testTransactionLogConcurrentAppends() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("coffeemaker.log");
+        TransactionLog log = new TransactionLog(file, false);
+        CompiledRecipe coffee = recipe1.compile();
+        int perThread = 5000;
+        Thread[] appenders = new Thread[4];
+        AtomicLong lastLsn = new AtomicLong();
+        for (int t = 0; t < appenders.length; t++) {
+            appenders[t] = new Thread(() -> {
+                long previous = 0;
+                for (int i = 0; i < perThread; i++) {
+                    long lsn = log.logRestock(new int[]{3, 1, 1, 0});
+                    lsn = Math.max(lsn, log.logRestock(new int[]{3, 1, 1, 0}));
+                    lsn = Math.max(lsn, log.logPurchase(0, coffee));
+                    assertTrue(lsn > previous);
+                    previous = lsn;
+                }
+                lastLsn.accumulateAndGet(previous, Math::max);
+            });
+            appenders[t].start();
+        }
+        char[] name = new char[TransactionLog.SEGMENT_SIZE + 100];
+        Arrays.fill(name, 'x');
+        recipe2.setName(new String(name));
+        lastLsn.accumulateAndGet(log.logAddRecipe(recipe2.compile()), Math::max);
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        log.close();
+        assertTrue(lastLsn.get() > (long) TransactionLog.MAX_SEGMENTS * TransactionLog.SEGMENT_SIZE);
+
+        RecipeBook recipeBook = new RecipeBook();
+        Inventory inventory = new Inventory();
+        TransactionLog reopened = new TransactionLog(file);
+        assertEquals(lastLsn.get(), reopened.getDurableLsn());
+        reopened.replay(recipeBook, inventory);
+        reopened.close();
+        int triples = appenders.length * perThread;
+        assertEquals(15 + 3 * triples, inventory.getCoffee());
+        assertEquals(15 + triples, inventory.getMilk());
+        assertEquals(15, inventory.getChocolate());
+        assertEquals(name.length, recipeBook.getRecipes()[0].getName().length());
+    }
+
+    /**
+     * Test that a record cut short by a crash is dropped when the log
+     * is opened again
+     *
+     * @throws IOException if the log cannot be written or read
+     * @TestCase E2
+     */
+    @Test
+    public void testTransactionLogTornTail() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("coffeemaker.log");
+        TransactionLog log = new TransactionLog(file);
+        CoffeeMaker logged = new CoffeeMaker(new RecipeBook(), new Inventory(), log);
+        logged.addRecipe(recipe1);
+        logged.makeCoffee(0, 50);
+        long intact = log.getDurableLsn();
+        logged.makeCoffee(0, 50);
+        log.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        RecipeBook recipeBook = new RecipeBook();
+        Inventory inventory = new Inventory();
+        TransactionLog reopened = new TransactionLog(file);
+        assertEquals(intact, reopened.getDurableLsn());
+        reopened.replay(recipeBook, inventory);
+        reopened.close();
+        assertEquals(12, inventory.getCoffee());
+    }
+
+    /**
+     * Test restoring a coffee maker from a snapshot plus the tail of the
+     * transaction log written after it
+     *
+     * @throws IOException        if the log or snapshot cannot be used
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase E3
+     */
+    @Test
+    public void testSnapshotRecovery() throws IOException, InventoryException {
+        Path logFile = folder.getRoot().toPath().resolve("coffeemaker.log");
+        Path snapshotFile = folder.getRoot().toPath().resolve("coffeemaker.snapshot");
+        TransactionLog log = new TransactionLog(logFile);
+        CoffeeMaker logged = new CoffeeMaker(new RecipeBook(), new Inventory(), log);
+        Checkpointer checkpointer = new Checkpointer(snapshotFile, log, Ingredients.DEFAULT);
+        logged.addRecipe(recipe1);
+        logged.addRecipe(recipe2);
+        logged.addRecipe(recipe3);
+        logged.deleteRecipe(0);
+        assertEquals(0, logged.makeCoffee(2, 100));
+        long lsn = checkpointer.checkpoint();
+
+        logged.addInventory("10", "0", "0", "0");
+        assertEquals(0, logged.makeCoffee(2, 100));
+        log.close();
+
+        RecipeBook recipeBook = new RecipeBook();
+        Inventory inventory = new Inventory();
+        assertEquals(lsn, SnapshotFile.load(snapshotFile, recipeBook, inventory));
+        assertEquals("Coffee: 12\nMilk: 12\nSugar: 14\nChocolate: 15\n", inventory.toString());
+        assertNull(recipeBook.getRecipes()[0]);
+        assertEquals(1, recipeBook.indexOf("Mocha"));
+
+        TransactionLog reopened = new TransactionLog(logFile, lsn);
+        assertEquals(log.getDurableLsn(), reopened.getDurableLsn());
+        reopened.replay(lsn, recipeBook, inventory);
+        reopened.close();
+        assertEquals(logged.checkInventory(), inventory.toString());
+        assertEquals(2, recipeBook.indexOf("Latte"));
+        assertTrue(recipeBook.addRecipe(recipe4));
+        assertEquals(0, recipeBook.indexOf("Hot Chocolate"));
+        try {
+            new TransactionLog(logFile, log.getDurableLsn() + 1);
+            fail("opened a log shorter than its snapshot");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("ends before LSN " + (log.getDurableLsn() + 1)));
+        }
+    }
+
+    /**
+     * Test running coffee maker commands through the network server,
+     * including pipelined commands, errors and QUIT
+     *
+     * @throws IOException if the server cannot be reached
+     * @TestCase E4
+     */
+    @Test
+    public void testServer() throws IOException {
+        CoffeeMaker served = new CoffeeMaker(new RecipeBook(), new Inventory());
+        try (CoffeeMakerServer server = new CoffeeMakerServer(served, 0, 2);
+             Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write(("ADD 50 3 1 1 0 Coffee\nADD 100 3 1 1 0 Caffe Latte\n"
+                    + "MENU\nBUY 1 150\nBUY 0 10\nbuy 9 50\nRESTOCK 1 -1 0 0\n"
+                    + "EDIT 0 60 0 0 0 0\nDELETE 1\nINVENTORY\nFOO\nBUY 0\nQUIT\nMENU\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("OK 0", in.readLine());
+            assertEquals("OK 1", in.readLine());
+            assertEquals("OK 0=Coffee 1=Caffe Latte", in.readLine());
+            assertEquals("OK 50", in.readLine());
+            assertEquals("ERR insufficient_funds 10", in.readLine());
+            assertEquals("ERR no_recipe 50", in.readLine());
+            assertEquals("ERR Units of milk must be a positive integer", in.readLine());
+            assertEquals("OK Coffee", in.readLine());
+            assertEquals("OK Caffe Latte", in.readLine());
+            assertEquals("OK Coffee=12 Milk=14 Sugar=14 Chocolate=15", in.readLine());
+            assertEquals("ERR unknown command FOO", in.readLine());
+            assertEquals("ERR BUY takes 2 arguments", in.readLine());
+            assertNull(in.readLine());
+        }
+        assertEquals(60, served.getRecipes()[0].getPrice());
+    }
+
+    /**
+     * Test that the server stops running the commands of a client that
+     * does not read its replies, and runs the rest once it does
+     *
+     * @throws Exception if the server cannot be reached
+     * @TestCase E9
+     */
+    @Test
+    public void testServerBackpressure() throws Exception {
+        CoffeeMaker served = new CoffeeMaker(new RecipeBook(16), new Inventory());
+        char[] padding = new char[60];
+        Arrays.fill(padding, 'x');
+        for (int r = 0; r < 16; r++) {
+            assertTrue(served.addRecipe(createRecipe(new String(padding) + r, 50, 1, 1, 1, 1)));
+        }
+        int pairs = 20000;
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < pairs; i++) {
+            script.append("MENU\nRESTOCK 1 0 0 0\n");
+        }
+        byte[] commands = script.append("QUIT\n").toString().getBytes(StandardCharsets.UTF_8);
+        try (CoffeeMakerServer server = new CoffeeMakerServer(served, 0, 2);
+             Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", server.getPort()));
+            OutputStream out = socket.getOutputStream();
+            CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try {
+                    out.write(commands);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            int ran = -1;
+            for (int unchanged = 0; unchanged < 5; ) {
+                Thread.sleep(100);
+                int now = served.getInventorySnapshot().getUnits(Ingredients.COFFEE) - 15;
+                unchanged = now == ran ? unchanged + 1 : 0;
+                ran = now;
+            }
+            assertTrue("ran " + ran + " commands with nobody reading", ran < pairs / 2);
+
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < pairs; i++) {
+                assertTrue(in.readLine().startsWith("OK 0=xxx"));
+                assertEquals("OK", in.readLine());
+            }
+            assertNull(in.readLine());
+            sent.get();
+        }
+        assertEquals(15 + pairs, served.getInventorySnapshot().getUnits(Ingredients.COFFEE));
+    }
+
+    /**
+     * Test that a command failing unexpectedly on the server gets an ERR
+     * reply instead of its partial output, and later commands still run
+     *
+     * @throws IOException if the server cannot be reached
+     * @TestCase E6
+     */
+    @Test
+    public void testServerCommandFailure() throws IOException {
+        CoffeeMaker broken = mock(CoffeeMaker.class);
+        when(broken.getInventorySnapshot()).thenThrow(new IllegalStateException("broken"));
+        try (CoffeeMakerServer server = new CoffeeMakerServer(broken, 0, 1);
+             Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write("INVENTORY\nFOO\nQUIT\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("ERR internal error", in.readLine());
+            assertEquals("ERR unknown command FOO", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    /**
+     * Test running a script of commands, skipping blank lines and
+     * comments
+     *
+     * @throws IOException if the script cannot be read
+     * @TestCase E5
+     */
+    @Test
+    public void testScript() throws IOException {
+        CommandProcessor processor = new CommandProcessor(new CoffeeMaker(new RecipeBook(), new Inventory()));
+        StringWriter out = new StringWriter();
+        long count = processor.run(new BufferedReader(new StringReader(
+                "# daily orders\nADD 50 3 1 1 0 Coffee\n\nRESTOCK 30 0 0 0\n  BUY 0 75\nBUY 0 20\nINVENTORY\n"
+                + "BUY 0 lots\nDELETE -1\nEDIT x 50 1 1 1 1")), out);
+        assertEquals(8, count);
+        assertEquals("OK 0\nOK\nOK 25\nERR insufficient_funds 20\nOK Coffee=42 Milk=14 Sugar=14 Chocolate=15\n"
+                + "ERR lots is not a non-negative integer\nERR -1 is not a non-negative integer\n"
+                + "ERR x is not a non-negative integer\n", out.toString());
+    }
+
+    /**
+     * Test that a script command with extra arguments is refused, except
+     * for the words of a recipe name
+     *
+     * @throws IOException if the script cannot be read
+     * @TestCase E8
+     */
+    @Test
+    public void testScriptExtraArguments() throws IOException {
+        CommandProcessor processor = new CommandProcessor(new CoffeeMaker(new RecipeBook(), new Inventory()));
+        StringWriter out = new StringWriter();
+        long count = processor.run(new BufferedReader(new StringReader(
+                "ADD 50 3 1 1 0 Caffe  Latte\nBUY 0 75 75\nRESTOCK 1 1 1 1 1\nINVENTORY now\nEDIT 0 50 1 1 1 1 1\n"
+                + "DELETE 0 0\nBUY 0\nMENU\n")), out);
+        assertEquals(8, count);
+        assertEquals("OK 0\nERR BUY takes 2 arguments\nERR RESTOCK takes 4 arguments\n"
+                + "ERR INVENTORY takes 0 arguments\nERR EDIT takes 6 arguments\nERR DELETE takes 1 arguments\n"
+                + "ERR BUY takes 2 arguments\nOK 0=Caffe  Latte\n", out.toString());
+    }
+
+    /**
+     * Test that a fleet keeps the same menu on every coffee maker, steals
+     * orders its home coffee maker cannot brew and evens out stock
+     *
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase F1
+     */
+    @Test
+    public void testFleet() throws InventoryException {
+        CoffeeMakerFleet fleet = new CoffeeMakerFleet(3);
+        assertTrue(fleet.addRecipe(recipe1));
+        assertTrue(fleet.addRecipe(recipe2));
+        assertFalse(fleet.addRecipe(recipe1));
+        assertEquals("Mocha", fleet.deleteRecipe(1));
+        assertTrue(fleet.addRecipe(recipe3));
+        for (int i = 0; i < fleet.size(); i++) {
+            assertEquals("Latte", fleet.getShard(i).getRecipes()[1].getName());
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, PurchaseResult.change(fleet.purchase(0, 0, 50)));
+        }
+        assertEquals(0, fleet.getShard(0).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(0, fleet.getStolen());
+        long result = fleet.purchase(0, 0, 60);
+        assertEquals(PurchaseOutcome.SUCCESS, PurchaseResult.outcome(result));
+        assertEquals(10, PurchaseResult.change(result));
+        assertEquals(1, fleet.getStolen());
+        assertEquals(12, fleet.getShard(1).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(0, fleet.getShard(0).getMetrics().getPurchases(PurchaseOutcome.OUT_OF_INGREDIENTS));
+        assertEquals(1, fleet.getShard(1).getMetrics().getPurchases(PurchaseOutcome.SUCCESS));
+        assertEquals(PurchaseOutcome.INSUFFICIENT_FUNDS,
+                PurchaseResult.outcome(fleet.purchase(0, 0, 10)));
+        assertEquals(1, fleet.getStolen());
+
+        fleet.addInventory(2, "6", "0", "0", "0");
+        assertEquals(33, fleet.getUnits(Ingredients.COFFEE));
+        assertEquals(17, fleet.rebalance());
+        for (int i = 0; i < fleet.size(); i++) {
+            assertEquals(11, fleet.getShard(i).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+            assertEquals(13, fleet.getShard(i).getInventorySnapshot().getUnits(Ingredients.MILK));
+        }
+        assertEquals(33, fleet.getUnits(Ingredients.COFFEE));
+        assertEquals(PurchaseOutcome.SUCCESS, PurchaseResult.outcome(fleet.purchase(0, 0, 50)));
+
+        CoffeeMakerFleet dry = new CoffeeMakerFleet(2);
+        assertTrue(dry.addRecipe(recipe2));
+        assertEquals(PurchaseOutcome.OUT_OF_INGREDIENTS, PurchaseResult.outcome(dry.purchase(1, 0, 75)));
+        assertEquals(1, dry.getShard(1).getMetrics().getPurchases(PurchaseOutcome.OUT_OF_INGREDIENTS));
+        assertEquals(0, dry.getShard(0).getMetrics().getPurchases(PurchaseOutcome.OUT_OF_INGREDIENTS));
+    }
+
+    /**
+     * Test that a fleet delivery that would overflow the last coffee
+     * maker leaves the stock of every coffee maker unchanged
+     *
+     * @throws InventoryException when use invalid unit in Inventory class
+     * @TestCase F7
+     */
+    @Test
+    public void testFleetDeliveryOverflow() throws InventoryException {
+        CoffeeMakerFleet fleet = new CoffeeMakerFleet(3);
+        fleet.addInventory(2, String.valueOf(Integer.MAX_VALUE - 15), "0", "0", "0");
+        try {
+            fleet.addInventory(new String[][]{{"1", "1", "1", "1"}, {"2", "2", "2", "2"}, {"1", "0", "0", "0"}});
+            fail("the last coffee maker's coffee overflowed");
+        } catch (InventoryException e) {
+            assertEquals("Units of coffee would overflow", e.getMessage());
+        }
+        for (int i = 0; i < 2; i++) {
+            assertEquals("Coffee: 15\nMilk: 15\nSugar: 15\nChocolate: 15\n", fleet.getShard(i).checkInventory());
+        }
+        assertEquals(Integer.MAX_VALUE, fleet.getShard(2).getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(15, fleet.getShard(2).getInventorySnapshot().getUnits(Ingredients.MILK));
+
+        fleet.addInventory(new String[][]{{"1", "1", "1", "1"}, null, {"0", "1", "0", "0"}});
+        assertEquals(16, fleet.getShard(0).getInventorySnapshot().getUnits(Ingredients.CHOCOLATE));
+        assertEquals(16, fleet.getShard(2).getInventorySnapshot().getUnits(Ingredients.MILK));
+    }
+
+    /**
+     * Test holding ingredients while a customer pays, then committing
+     * or releasing the hold
+     *
+     * @TestCase F3
+     */
+    @Test
+    public void testReserveCommitRelease() {
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.addRecipe(recipe3);
+        assertEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(2));
+        long latte = coffeeMaker.reserve(1);
+        long coffee = coffeeMaker.reserve(0);
+        assertEquals(2, coffeeMaker.getHolds());
+        assertEquals(9, coffeeMaker.getInventorySnapshot().getUnits(Ingredients.COFFEE));
+        assertEquals(11, coffeeMaker.getInventorySnapshot().getUnits(Ingredients.MILK));
+
+        assertEquals(PurchaseResult.of(PurchaseOutcome.INSUFFICIENT_FUNDS, 60), coffeeMaker.commit(latte, 60));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.SUCCESS, 10), coffeeMaker.commit(latte, 110));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.HOLD_EXPIRED, 110), coffeeMaker.commit(latte, 110));
+        assertFalse(coffeeMaker.release(latte));
+        assertTrue(coffeeMaker.release(coffee));
+        assertFalse(coffeeMaker.release(coffee));
+        assertEquals(0, coffeeMaker.getHolds());
+        assertEquals("Coffee: 12\nMilk: 12\nSugar: 14\nChocolate: 15\n", coffeeMaker.checkInventory());
+        assertEquals(1, coffeeMaker.getMetrics().getPurchases(1, PurchaseOutcome.SUCCESS));
+        assertEquals(1, coffeeMaker.getMetrics().getPurchases(PurchaseOutcome.HOLD_EXPIRED));
+
+        assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        assertEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        assertEquals(PurchaseResult.of(PurchaseOutcome.OUT_OF_INGREDIENTS, 50), coffeeMaker.purchase(0, 50));
+    }
+
+    /**
+     * Test that holds expire on the timer wheel and give their
+     * ingredients back, and that old tokens stay invalid
+     *
+     * @TestCase F4
+     */
+    @Test
+    public void testHoldExpiry() {
+        Inventory inventory = new Inventory();
+        AtomicLong now = new AtomicLong(1000);
+        HoldTable holds = new HoldTable(inventory, 1, TimeUnit.SECONDS, now::get);
+        CompiledRecipe coffee = recipe1.compile();
+        long first = holds.hold(0, coffee);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        long second = holds.hold(0, coffee);
+        assertEquals(9, inventory.getCoffee());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(520));
+        assertEquals(1, holds.expire());
+        assertNull(holds.get(first));
+        assertNotNull(holds.get(second));
+        assertEquals(12, inventory.getCoffee());
+
+        long third = holds.hold(0, coffee);
+        assertNotEquals(first, third);
+        assertEquals((int) first, (int) third);
+        assertFalse(holds.release(first));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertEquals(2, holds.expire());
+        assertEquals(0, holds.size());
+        assertEquals(3, holds.getExpired());
+        assertEquals(15, inventory.getCoffee());
+
+        for (int i = 0; i < 5; i++) {
+            holds.hold(0, coffee);
+        }
+        assertEquals(HoldTable.NO_HOLD, holds.hold(0, coffee));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(0, holds.expire());
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(5, holds.expire());
+        assertEquals(15, inventory.getCoffee());
+    }
+
+    /**
+     * Test that held ingredients come back once their holds time out
+     * without any further hold calls, for a plain purchase and for the
+     * availability
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @TestCase F6
+     */
+    @Test
+    public void testHoldsExpireWithoutHoldCalls() throws InterruptedException {
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.setHoldTimeout(20, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        }
+        assertEquals(50, coffeeMaker.makeCoffee(0, 50));
+        Thread.sleep(100);
+        assertEquals(0, coffeeMaker.makeCoffee(0, 50));
+        assertEquals(0, coffeeMaker.getHolds());
+        assertEquals(12, coffeeMaker.getInventorySnapshot().getUnits(Ingredients.COFFEE));
+
+        for (int i = 0; i < 4; i++) {
+            assertNotEquals(CoffeeMaker.NO_HOLD, coffeeMaker.reserve(0));
+        }
+        assertFalse(coffeeMaker.getAvailability().isAvailable(0));
+        Thread.sleep(100);
+        assertTrue(coffeeMaker.getAvailability().isAvailable(0));
+        assertEquals(4, coffeeMaker.getServings().getMaxServings(0));
+    }
+
+    /**
+     * Test that the sales ledger keeps the latest sales and rolling
+     * totals that drop sales as they leave each window
+     *
+     * @TestCase F5
+     */
+    @Test
+    public void testSalesLedger() {
+        AtomicLong nanos = new AtomicLong();
+        SalesLedger ledger = new SalesLedger(4, nanos::get, 1000000);
+        ledger.record(0, 50, 0);
+        ledger.record(1, 75, 25);
+        ledger.record(1, 75, 0);
+        assertEquals(200, ledger.getRevenue(SalesLedger.Window.MINUTE));
+        assertEquals(3, ledger.getSales(SalesLedger.Window.DAY));
+        assertEquals(2, ledger.getSales(SalesLedger.Window.HOUR, 1));
+        assertEquals(0, ledger.getSales(SalesLedger.Window.HOUR, 9));
+        assertEquals(1, ledger.getTopSeller(SalesLedger.Window.MINUTE));
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        for (int i = 0; i < 3; i++) {
+            ledger.record(2, 100, 0);
+        }
+        assertEquals(2, ledger.getTopSeller(SalesLedger.Window.MINUTE));
+        assertEquals(500, ledger.getRevenue(SalesLedger.Window.MINUTE));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        assertEquals(300, ledger.getRevenue(SalesLedger.Window.MINUTE));
+        assertEquals(0, ledger.getSales(SalesLedger.Window.MINUTE, 1));
+        assertEquals(500, ledger.getRevenue(SalesLedger.Window.HOUR));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertEquals(0, ledger.getSales(SalesLedger.Window.MINUTE));
+        assertEquals(-1, ledger.getTopSeller(SalesLedger.Window.MINUTE));
+        assertEquals(2, ledger.getTopSeller(SalesLedger.Window.HOUR));
+        nanos.addAndGet(TimeUnit.DAYS.toNanos(1));
+        assertEquals(0, ledger.getRevenue(SalesLedger.Window.DAY));
+        assertEquals(6, ledger.getCount());
+
+        ledger.record(3, 65, 35);
+        long[] times = new long[10];
+        int[] slots = new int[10];
+        int[] changes = new int[10];
+        assertEquals(4, ledger.copyLatest(times, slots, null, changes));
+        assertArrayEquals(new int[]{3, 2, 2, 2}, Arrays.copyOf(slots, 4));
+        assertEquals(35, changes[0]);
+        assertEquals(1000000 + TimeUnit.SECONDS.toMillis(91) + TimeUnit.DAYS.toMillis(1), times[0]);
+        assertEquals(1000000 + TimeUnit.SECONDS.toMillis(30), times[1]);
+
+        SalesLedger late = new SalesLedger(16, nanos::get, 0);
+        long start = nanos.get();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(90));
+        late.record(0, 50, 0);
+        late.record(1, 60, 0, start + TimeUnit.SECONDS.toNanos(45));
+        late.record(2, 70, 0, start + TimeUnit.SECONDS.toNanos(10));
+        late.record(1, 60, 0);
+        assertEquals(170, late.getRevenue(SalesLedger.Window.MINUTE));
+        assertEquals(240, late.getRevenue(SalesLedger.Window.HOUR));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(15));
+        assertEquals(110, late.getRevenue(SalesLedger.Window.MINUTE));
+        assertEquals(240, late.getRevenue(SalesLedger.Window.HOUR));
+
+        for (int slot = 5; slot <= 8; slot++) {
+            late.record(slot, 10, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            late.record(8, 10, 0);
+            late.record(5, 10, 0);
+        }
+        late.record(8, 10, 0);
+        int[] top = new int[SalesLedger.TOP_SELLERS + 1];
+        assertEquals(SalesLedger.TOP_SELLERS, late.getTopSellers(SalesLedger.Window.HOUR, top));
+        assertArrayEquals(new int[]{8, 5, 1}, Arrays.copyOf(top, 3));
+        assertEquals(8, late.getTopSeller(SalesLedger.Window.HOUR));
+        assertEquals(2, late.getTopSellers(SalesLedger.Window.DAY, new int[2]));
+        nanos.addAndGet(TimeUnit.DAYS.toNanos(1));
+        assertEquals(0, late.getTopSellers(SalesLedger.Window.DAY, top));
+
+        coffeeMaker.addRecipe(recipe1);
+        coffeeMaker.makeCoffee(0, 75);
+        coffeeMaker.makeCoffee(0, 10);
+        coffeeMaker.makeCoffeeBatch(new int[]{0, 1}, new int[]{50, 50});
+        assertEquals(2, coffeeMaker.getSalesLedger().getCount());
+        assertEquals(100, coffeeMaker.getSalesLedger().getRevenue(SalesLedger.Window.HOUR));
+        assertEquals(0, coffeeMaker.getSalesLedger().getTopSeller(SalesLedger.Window.MINUTE));
+    }
+
+    /**
+     * Test that the order pipeline makes submitted orders, refuses
+     * orders once it is full and makes every accepted order on close
+     *
+     * @throws Exception if an order fails or the test is interrupted
+     * @TestCase F2
+     */
+    @Test
+    public void testOrderPipeline() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecipeBook slowRecipeBook = Mockito.mock(RecipeBook.class);
+        when(slowRecipeBook.getRecipes()).thenAnswer(invocation -> {
+            entered.countDown();
+            release.await();
+            return new Recipe[]{recipe1, recipe2, recipe3};
+        });
+        OrderPipeline pipeline = new OrderPipeline(new CoffeeMaker(slowRecipeBook, new Inventory()), 3);
+
+        CompletableFuture<Long> first = pipeline.submit(0, 50);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Long>> accepted = new ArrayList<CompletableFuture<Long>>();
+        for (int slot : new int[]{0, 2, 0, 1}) {
+            accepted.add(pipeline.submit(slot, 100));
+        }
+        assertEquals(4, pipeline.getQueueSize());
+        CompletableFuture<Long> overflow = pipeline.submit(0, 50);
+        assertTrue(overflow.isCompletedExceptionally());
+        assertEquals(1, pipeline.getRejected());
+        try {
+            overflow.get();
+            fail("an order was accepted by a full pipeline");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        release.countDown();
+        assertEquals(PurchaseResult.of(PurchaseOutcome.SUCCESS, 0), (long) first.get(5, TimeUnit.SECONDS));
+        pipeline.close();
+        assertEquals(50, PurchaseResult.change(accepted.get(0).getNow(-1L)));
+        assertEquals(0, PurchaseResult.change(accepted.get(1).getNow(-1L)));
+        assertEquals(50, PurchaseResult.change(accepted.get(2).getNow(-1L)));
+        assertEquals(PurchaseOutcome.OUT_OF_INGREDIENTS, PurchaseResult.outcome(accepted.get(3).getNow(-1L)));
+        assertEquals(0, pipeline.getQueueSize());
+        assertTrue(pipeline.submit(0, 50).isCompletedExceptionally());
+        assertEquals(2, pipeline.getRejected());
+    }
+
     /**
      * Initializes a recipe to test using cucumber
      *